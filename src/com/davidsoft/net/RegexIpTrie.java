@@ -0,0 +1,163 @@
+package com.davidsoft.net;
+
+import java.util.Arrays;
+
+/**
+ * 以{@link RegexIP}为key、long为值的不可变索引，用于在大量带通配符的IP中快速查找与某个IP匹配的项。
+ * <p>结构为按IP的4个字节逐级分支的trie，每个节点的分支按字节值排序，通配符(*)排在最后。所有节点与分支保存在几个基本类型数组中，
+ * 查找时每一级最多走“该字节”和“*”两个分支，只需少量数组读取，且不产生任何对象。</p>
+ * <p>此类的实例创建后不再改变，可以被多个线程同时读取。内容变化时需重新构建，构建的开销为O(n log n)。</p>
+ */
+public final class RegexIpTrie {
+
+    private static final int WILDCARD = 256;
+    private static final int MAX_SIZE = 1 << 27;    //构建时key(36位)与序号共用一个long排序
+
+    public static final RegexIpTrie EMPTY = build(new long[0], new long[0], 0);
+
+    //节点按层序编号，节点i的分支为[firstEdges[i], firstEdges[i + 1])
+    private final int[] firstEdges;
+    private final short[] labels;   //分支的字节值，WILDCARD代表*
+    private final int[] targets;    //前3层为子节点编号，第4层为values的下标
+    private final long[] values;
+
+    private RegexIpTrie(int[] firstEdges, short[] labels, int[] targets, long[] values) {
+        this.firstEdges = firstEdges;
+        this.labels = labels;
+        this.targets = targets;
+        this.values = values;
+    }
+
+    //将RegexIP转为可排序的key：每个字节占9位，通配符为256
+    private static long toSortKey(long regexIp) {
+        long key = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = RegexIP.getIpByte(regexIp, i);
+            key = (key << 9) | (b == RegexIP.BYTE_REGEX ? WILDCARD : b);
+        }
+        return key;
+    }
+
+    /**
+     * @param regexIps 各项的key，不能重复
+     * @param values 各项的值，与regexIps一一对应
+     * @param count 项数
+     */
+    public static RegexIpTrie build(long[] regexIps, long[] values, int count) {
+        if (count > MAX_SIZE) {
+            throw new IllegalArgumentException("项数过多：" + count);
+        }
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = (toSortKey(regexIps[i]) << 27) | i;
+        }
+        Arrays.sort(sorted);
+        long[] keys = new long[count];
+        long[] sortedValues = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = sorted[i] >>> 27;
+            sortedValues[i] = values[(int) (sorted[i] & (MAX_SIZE - 1))];
+        }
+
+        //第d层节点对应长度为d的不同前缀，第d层节点的分支对应长度为d+1的不同前缀，二者在有序的keys中都是连续出现的
+        int[] levelOffsets = new int[5];
+        int[] levelCounts = new int[5];
+        levelCounts[0] = 1;
+        for (int d = 1; d <= 4; d++) {
+            int shift = (4 - d) * 9;
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || keys[i] >>> shift != keys[i - 1] >>> shift) {
+                    distinct++;
+                }
+            }
+            levelCounts[d] = distinct;
+        }
+        for (int d = 1; d <= 4; d++) {
+            levelOffsets[d] = levelOffsets[d - 1] + levelCounts[d - 1];
+        }
+        int nodeCount = levelOffsets[4];
+        int edgeCount = levelCounts[1] + levelCounts[2] + levelCounts[3] + levelCounts[4];
+        int[] firstEdges = new int[nodeCount + 1];
+        short[] labels = new short[edgeCount];
+        int[] targets = new int[edgeCount];
+
+        int edge = 0;
+        for (int d = 0; d < 4; d++) {
+            int parentShift = (4 - d) * 9;
+            int childShift = parentShift - 9;
+            int parent = -1;
+            int child = -1;
+            for (int i = 0; i < count; i++) {
+                boolean newChild = i == 0 || keys[i] >>> childShift != keys[i - 1] >>> childShift;
+                if (!newChild) {
+                    continue;
+                }
+                child++;
+                if (i == 0 || (d > 0 && keys[i] >>> parentShift != keys[i - 1] >>> parentShift)) {
+                    parent++;
+                    firstEdges[levelOffsets[d] + parent] = edge;
+                }
+                labels[edge] = (short) ((keys[i] >>> childShift) & 0x1FF);
+                targets[edge] = d == 3 ? child : levelOffsets[d + 1] + child;
+                edge++;
+            }
+        }
+        firstEdges[nodeCount] = edge;
+        return new RegexIpTrie(firstEdges, labels, targets, sortedValues);
+    }
+
+    //在节点的分支中查找字节值，找不到返回-1
+    private int findEdge(int node, int label) {
+        int low = firstEdges[node];
+        int high = firstEdges[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midLabel = labels[mid];
+            if (midLabel < label) {
+                low = mid + 1;
+            }
+            else if (midLabel > label) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private long getMax(int node, int depth, int ip, long max) {
+        int start = firstEdges[node];
+        int end = firstEdges[node + 1];
+        if (start == end) {
+            return max;
+        }
+        int edge = findEdge(node, (ip >>> ((3 - depth) << 3)) & 0xFF);
+        if (edge != -1) {
+            max = depth == 3 ? Math.max(max, values[targets[edge]]) : getMax(targets[edge], depth + 1, ip, max);
+        }
+        //通配符总在最后
+        if (labels[end - 1] == WILDCARD) {
+            edge = end - 1;
+            max = depth == 3 ? Math.max(max, values[targets[edge]]) : getMax(targets[edge], depth + 1, ip, max);
+        }
+        return max;
+    }
+
+    /**
+     * 查找与ip匹配的所有项中的最大值。
+     *
+     * @return 没有匹配的项则返回Long.MIN_VALUE
+     */
+    public long getMax(int ip) {
+        if (values.length == 0) {
+            return Long.MIN_VALUE;
+        }
+        return getMax(0, 0, ip, Long.MIN_VALUE);
+    }
+
+    public int size() {
+        return values.length;
+    }
+}
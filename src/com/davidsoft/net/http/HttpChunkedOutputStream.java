@@ -4,33 +4,120 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * ChunkedTransfer编码输出流。
+ * <p>写入的数据先在缓冲区中合并，攒满{@link #CHUNK_SIZE}字节(或flush、finish)时才作为一个chunk发出，chunk的长度行、数据与结尾的\r\n通过一次write写出。
+ * 缓冲区在流结束后归还到池中，供其他连接复用。</p>
+ */
 public class HttpChunkedOutputStream extends OutputStream {
 
+    /**
+     * 一个chunk中数据的最大字节数。
+     */
+    public static final int CHUNK_SIZE = 16384;
+
+    //缓冲区布局：[长度行(右对齐，最多4位十六进制数 + \r\n)][数据][\r\n]
+    private static final int PREFIX_SIZE = 6;
+    private static final int BUFFER_SIZE = PREFIX_SIZE + CHUNK_SIZE + 2;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LAST_CHUNK = "0\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentLinkedQueue<byte[]> bufferPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    private static byte[] acquireBuffer() {
+        byte[] buffer = bufferPool.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        if (pooledBuffers.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            pooledBuffers.decrementAndGet();
+            return;
+        }
+        bufferPool.offer(buffer);
+    }
+
     private final OutputStream out;
+    private byte[] buffer;  //在第一次写入时才从池中申请
+    private int count;      //缓冲区中数据的字节数
 
     public HttpChunkedOutputStream(OutputStream out) {
         this.out = out;
     }
 
+    //将缓冲区中的数据作为一个chunk发出
+    private void writeChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int position = PREFIX_SIZE - 2;
+        buffer[position] = '\r';
+        buffer[position + 1] = '\n';
+        int value = count;
+        do {
+            buffer[--position] = HEX_DIGITS[value & 0xF];
+            value >>>= 4;
+        } while (value != 0);
+        buffer[PREFIX_SIZE + count] = '\r';
+        buffer[PREFIX_SIZE + count + 1] = '\n';
+        out.write(buffer, position, PREFIX_SIZE - position + count + 2);
+        count = 0;
+    }
+
     public void finish() throws IOException {
-        out.write("0\r\n".getBytes(StandardCharsets.UTF_8));
+        if (buffer != null) {
+            writeChunk();
+            releaseBuffer(buffer);
+            buffer = null;
+        }
+        out.write(LAST_CHUNK);
     }
 
     public void write(int b) throws IOException {
-        out.write("1\r\n".getBytes(StandardCharsets.UTF_8));
-        out.write(b);
-        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        if (buffer == null) {
+            buffer = acquireBuffer();
+        }
+        buffer[PREFIX_SIZE + count++] = (byte) b;
+        if (count == CHUNK_SIZE) {
+            writeChunk();
+        }
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
         Objects.checkFromIndexSize(off, len, b.length);
-        out.write(String.format("%X\r\n", len).getBytes(StandardCharsets.UTF_8));
-        out.write(b, off, len);
-        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        if (len == 0) {
+            //长度为0的chunk代表结束，不能发出
+            return;
+        }
+        if (buffer == null) {
+            buffer = acquireBuffer();
+        }
+        while (len > 0) {
+            int length = Math.min(len, CHUNK_SIZE - count);
+            System.arraycopy(b, off, buffer, PREFIX_SIZE + count, length);
+            count += length;
+            off += length;
+            len -= length;
+            if (count == CHUNK_SIZE) {
+                writeChunk();
+            }
+        }
     }
 
     public void flush() throws IOException {
+        if (buffer != null) {
+            writeChunk();
+        }
         out.flush();
     }
 
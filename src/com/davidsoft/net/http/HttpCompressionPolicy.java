@@ -0,0 +1,94 @@
+package com.davidsoft.net.http;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * 决定Content是否压缩、以及以何种方式压缩。
+ * <ul>
+ *     <li>长度小于minSize的Content不压缩，压缩收益抵不上开销；</li>
+ *     <li>MimeType不在白名单中的Content不压缩，如图片、字体等已压缩过的格式；</li>
+ *     <li>长度大于streamThreshold的Content改用ChunkedTransfer边压缩边发送，每个响应占用的内存只与压缩窗口有关，与Content的长度无关。</li>
+ * </ul>
+ */
+public final class HttpCompressionPolicy {
+
+    /**
+     * 不限制MimeType、不设最小长度，且超过1MiB就边压缩边发送的策略，与未引入此类之前的行为一致。
+     */
+    public static final HttpCompressionPolicy DEFAULT = new HttpCompressionPolicy(0, 1048576, null);
+
+    private static volatile HttpCompressionPolicy current = DEFAULT;
+
+    private final long minSize;
+    private final long streamThreshold;
+    private final HashSet<String> mimeTypes;            //完整匹配的MimeType，null代表不限制
+    private final ArrayList<String> mimeTypePrefixes;   //形如text/*的MimeType，存储的是"text/"
+
+    /**
+     * @param minSize 小于此长度的Content不压缩
+     * @param streamThreshold 大于此长度的Content边压缩边发送
+     * @param mimeTypes 可压缩的MimeType，支持形如text/*的通配，为null则不限制
+     */
+    public HttpCompressionPolicy(long minSize, long streamThreshold, Iterable<String> mimeTypes) {
+        this.minSize = minSize;
+        this.streamThreshold = Math.min(streamThreshold, DirectReferByteArrayOutputStream.MAX_ARRAY_LENGTH);
+        if (mimeTypes == null) {
+            this.mimeTypes = null;
+            mimeTypePrefixes = null;
+        }
+        else {
+            this.mimeTypes = new HashSet<>();
+            mimeTypePrefixes = new ArrayList<>();
+            for (String mimeType : mimeTypes) {
+                mimeType = mimeType.trim().toLowerCase();
+                if (mimeType.isEmpty()) {
+                    continue;
+                }
+                if (mimeType.endsWith("/*")) {
+                    mimeTypePrefixes.add(mimeType.substring(0, mimeType.length() - 1));
+                }
+                else {
+                    this.mimeTypes.add(mimeType);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param contentLength Content的长度，未知(如ChunkedTransfer)时为-1
+     */
+    public boolean shouldCompress(String mimeType, long contentLength) {
+        if (contentLength >= 0 && contentLength < minSize) {
+            return false;
+        }
+        if (mimeTypes == null) {
+            return true;
+        }
+        if (mimeType == null) {
+            return false;
+        }
+        mimeType = mimeType.toLowerCase();
+        if (mimeTypes.contains(mimeType)) {
+            return true;
+        }
+        for (String prefix : mimeTypePrefixes) {
+            if (mimeType.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean shouldStream(long contentLength) {
+        return contentLength > streamThreshold;
+    }
+
+    public static HttpCompressionPolicy getCurrent() {
+        return current;
+    }
+
+    public static void setCurrent(HttpCompressionPolicy policy) {
+        current = policy;
+    }
+}
@@ -3,17 +3,27 @@ package com.davidsoft.net.http;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.Map;
 
 public class HttpContentBytesProvider implements HttpContentProvider {
 
     private final byte[] data;
     private final String mimeType;
     private final Charset charset;
+    private final Map<String, byte[]> encodedData;
 
     public HttpContentBytesProvider(byte[] data, String mimeType, Charset charset) {
+        this(data, mimeType, charset, null);
+    }
+
+    /**
+     * @param encodedData 预先编码好的Content，key为ContentEncoding(小写)。可以为null。
+     */
+    public HttpContentBytesProvider(byte[] data, String mimeType, Charset charset, Map<String, byte[]> encodedData) {
         this.data = data;
         this.mimeType = mimeType;
         this.charset = charset;
+        this.encodedData = encodedData;
     }
 
 
@@ -46,4 +56,16 @@ public class HttpContentBytesProvider implements HttpContentProvider {
     public HttpHeaders getSuspendedHeader() {
         return null;
     }
+
+    @Override
+    public HttpContentProvider getEncodedProvider(String contentEncoding) {
+        if (encodedData == null) {
+            return null;
+        }
+        byte[] encoded = encodedData.get(contentEncoding.toLowerCase());
+        if (encoded == null) {
+            return null;
+        }
+        return new HttpContentBytesProvider(encoded, mimeType, charset);
+    }
 }
@@ -43,6 +43,23 @@ public final class HttpContentEncodedStreamFactory {
         }
     }
 
+    /**
+     * @return 以contentEncoding编码的内容的强ETag应附加的后缀，使不同编码的内容有不同的ETag；未编码时为空串
+     */
+    public static String eTagSuffixOf(String contentEncoding) {
+        if (contentEncoding == null) {
+            return "";
+        }
+        switch (contentEncoding.toLowerCase()) {
+            case "gzip":
+                return "-gz";
+            case "deflate":
+                return "-df";
+            default:
+                return "-" + contentEncoding.toLowerCase();
+        }
+    }
+
     public static Collection<String> getSupportedContentEncodings() {
         return supportedContentEncodings;
     }
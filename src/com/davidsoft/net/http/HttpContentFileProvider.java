@@ -4,29 +4,48 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 
+/**
+ * 文件内容。文件在onProvide时才会被打开，且在onProvide返回前一定会被关闭。
+ */
 public class HttpContentFileProvider implements HttpContentProvider {
 
+    private final File file;
     private final String mimeType;
-    private final FileInputStream fileIn;
     private final Charset charset;
-    private final int contentLength;
-    private final boolean chunkedTransfer;
+    private final long contentLength;
+    private final Map<String, File> encodedFiles;
 
     public HttpContentFileProvider(File file, Charset charset) throws IOException {
+        this.file = file;
         mimeType = Files.probeContentType(file.toPath());
-        fileIn = new FileInputStream(file);
         this.charset = charset;
-        if (file.length() > 1048576/*1MiB*/) {
-            contentLength = 0;
-            chunkedTransfer = true;
-        }
-        else {
-            contentLength = (int) file.length();
-            chunkedTransfer = false;
-        }
+        contentLength = file.length();
+        encodedFiles = null;
+    }
+
+    /**
+     * 使用已知的mimeType与文件长度，不再访问文件系统。
+     */
+    public HttpContentFileProvider(File file, String mimeType, Charset charset, long contentLength) {
+        this(file, mimeType, charset, contentLength, null);
+    }
+
+    /**
+     * @param encodedFiles 预先编码好的文件(如同目录下的.gz文件)，key为ContentEncoding(小写)。可以为null。
+     */
+    public HttpContentFileProvider(File file, String mimeType, Charset charset, long contentLength, Map<String, File> encodedFiles) {
+        this.file = file;
+        this.mimeType = mimeType;
+        this.charset = charset;
+        this.contentLength = contentLength;
+        this.encodedFiles = encodedFiles;
     }
 
     @Override
@@ -46,16 +65,60 @@ public class HttpContentFileProvider implements HttpContentProvider {
 
     @Override
     public boolean useChunkedTransfer() {
-        return chunkedTransfer;
+        return false;
     }
 
     @Override
     public void onProvide(OutputStream out) throws IOException {
-        fileIn.transferTo(out);
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            long remain = contentLength;
+            byte[] buffer = new byte[(int) Math.min(remain, 65536)];
+            while (remain > 0) {
+                int length = fileIn.read(buffer, 0, (int) Math.min(remain, buffer.length));
+                if (length == -1) {
+                    throw new IOException("文件在发送过程中被修改：" + file.getPath());
+                }
+                out.write(buffer, 0, length);
+                remain -= length;
+            }
+        }
+    }
+
+    /**
+     * 直接由FileChannel.transferTo发往channel，在支持的平台上会使用sendfile，文件内容不经过用户态。
+     */
+    @Override
+    public void onProvide(OutputStream out, WritableByteChannel channel) throws IOException {
+        if (channel == null) {
+            onProvide(out);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < contentLength) {
+                long length = fileChannel.transferTo(position, contentLength - position, channel);
+                if (length <= 0 && position >= fileChannel.size()) {
+                    throw new IOException("文件在发送过程中被修改：" + file.getPath());
+                }
+                position += length;
+            }
+        }
     }
 
     @Override
     public HttpHeaders getSuspendedHeader() {
         return null;
     }
+
+    @Override
+    public HttpContentProvider getEncodedProvider(String contentEncoding) {
+        if (encodedFiles == null) {
+            return null;
+        }
+        File encodedFile = encodedFiles.get(contentEncoding.toLowerCase());
+        if (encodedFile == null) {
+            return null;
+        }
+        return new HttpContentFileProvider(encodedFile, mimeType, charset, encodedFile.length());
+    }
 }
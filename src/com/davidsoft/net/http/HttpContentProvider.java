@@ -2,6 +2,7 @@ package com.davidsoft.net.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 
 public interface HttpContentProvider {
@@ -17,5 +18,17 @@ public interface HttpContentProvider {
     //值得注意的是，ChunkedTransfer由外部实现，这里尽管向outputStream里写原始数据就好~
     void onProvide(OutputStream out) throws IOException;
 
+    //在不编码、不分块的情况下，如果out背后是一个channel(如SocketChannel)，则会调用此方法，以便直接向channel写入。调用前out已被flush。
+    //channel可能为null。默认实现直接调用onProvide(out)。
+    default void onProvide(OutputStream out, WritableByteChannel channel) throws IOException {
+        onProvide(out);
+    }
+
     HttpHeaders getSuspendedHeader();
+
+    //若能直接提供以contentEncoding编码好的Content(如预先压缩并缓存的文件)，则返回提供编码后Content的HttpContentProvider，其MimeType与Charset应与原Content一致。
+    //返回null则由发送方逐次编码。默认返回null。
+    default HttpContentProvider getEncodedProvider(String contentEncoding) throws IOException {
+        return null;
+    }
 }
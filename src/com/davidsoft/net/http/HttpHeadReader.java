@@ -0,0 +1,139 @@
+package com.davidsoft.net.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 带缓冲的Http头部读取器。一个连接对应一个此类的实例，缓冲区在连接复用期间重复使用。
+ * <p>{@link #readLine(int)}在缓冲区中成块地查找\r\n，行内容直接以缓冲区中的字节区间的形式给出，不会为每一行创建String。</p>
+ * <p>此类同时也是一个InputStream：头部之后已被读入缓冲区的数据(如Content)会先从缓冲区中读出，而后再从源输入流中读取。</p>
+ */
+public class HttpHeadReader extends InputStream {
+
+    /**
+     * 在给定的最大长度内没有找到行尾。
+     */
+    public static final int LINE_TOO_LONG = -1;
+
+    private final InputStream source;
+    private byte[] buffer;
+    private int position;   //下一个未被消费的字节
+    private int limit;      //缓冲区中有效数据的末尾
+    private int lineStart;
+
+    public HttpHeadReader(InputStream source, int initialBufferSize) {
+        this.source = source;
+        buffer = new byte[Math.max(initialBufferSize, 256)];
+    }
+
+    /**
+     * 以已接收的数据构造，data直接作为缓冲区使用，不会复制。
+     *
+     * @param source 已接收的数据之后的输入流
+     * @param data 缓冲区，其[0, length)区间为已从source之前接收的数据
+     * @param length 已接收的字节数
+     */
+    public HttpHeadReader(InputStream source, byte[] data, int length) {
+        this.source = source;
+        buffer = data;
+        limit = length;
+    }
+
+    /**
+     * 读取一行(以\r\n结尾)。行内容位于{@link #getBuffer()}的[{@link #getLineStart()}, {@link #getLineStart()} + 返回值)区间内，不包含\r\n。
+     * 行内容在下一次调用此方法或从此流读取数据之前有效。
+     *
+     * @param maxLength 行内容的最大字节数
+     * @return 行内容的字节数；若在maxLength字节内没有找到行尾，则返回{@link #LINE_TOO_LONG}，此时{@link #getLineStart()}指向已接收的部分内容，且这些内容不会被消费。
+     * @throws EOFException 找到行尾之前流已结束
+     */
+    public int readLine(int maxLength) throws IOException {
+        int scan = position;
+        while (true) {
+            for (; scan + 1 < limit; scan++) {
+                if (buffer[scan] == '\r' && buffer[scan + 1] == '\n') {
+                    lineStart = position;
+                    position = scan + 2;
+                    return scan - lineStart;
+                }
+            }
+            if (limit - position >= (long) maxLength + 2) {
+                lineStart = position;
+                return LINE_TOO_LONG;
+            }
+            //缓冲区已满，则先将未消费的数据移至缓冲区头部，仍然不够则扩容
+            if (limit == buffer.length) {
+                if (position > 0) {
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    scan -= position;
+                    limit -= position;
+                    position = 0;
+                }
+                else {
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, (long) maxLength + 2));
+                }
+            }
+            int length = source.read(buffer, limit, buffer.length - limit);
+            if (length == -1) {
+                throw new EOFException();
+            }
+            limit += length;
+        }
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return 缓冲区中从{@link #getLineStart()}开始的已接收字节数。用于在{@link #readLine(int)}返回{@link #LINE_TOO_LONG}时查看已接收的部分内容。
+     */
+    public int getBufferedLength() {
+        return limit - lineStart;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position < limit) {
+            return buffer[position++] & 0xFF;
+        }
+        return source.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (position < limit) {
+            int length = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, length);
+            position += length;
+            return length;
+        }
+        return source.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (position < limit) {
+            int length = (int) Math.min(n, limit - position);
+            position += length;
+            return length;
+        }
+        return source.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - position) + source.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
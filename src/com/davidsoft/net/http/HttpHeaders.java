@@ -147,6 +147,116 @@ public class HttpHeaders {
         return SUCCESS;
     }
 
+    /**
+     * 常见的请求头字段名，格式为{原始写法, 小写}。从{@link HttpHeadReader}解析请求头时，字段名若与这些写法一致，则直接复用这里的String。
+     */
+    private static final String[][] WELL_KNOWN_FIELD_NAMES = {
+            {"Host", "host"},
+            {"Connection", "connection"},
+            {"User-Agent", "user-agent"},
+            {"Accept", "accept"},
+            {"Accept-Encoding", "accept-encoding"},
+            {"Accept-Language", "accept-language"},
+            {"Cookie", "cookie"},
+            {"Referer", "referer"},
+            {"Origin", "origin"},
+            {"Content-Type", "content-type"},
+            {"Content-Length", "content-length"},
+            {"Content-Encoding", "content-encoding"},
+            {"Transfer-Encoding", "transfer-encoding"},
+            {"X-Requested-With", "x-requested-with"},
+            {"X-Forwarded-For", "x-forwarded-for"},
+            {"Cache-Control", "cache-control"},
+            {"Pragma", "pragma"},
+            {"If-None-Match", "if-none-match"},
+            {"If-Modified-Since", "if-modified-since"},
+            {"Upgrade-Insecure-Requests", "upgrade-insecure-requests"},
+            {"Sec-Fetch-Site", "sec-fetch-site"},
+            {"Sec-Fetch-Mode", "sec-fetch-mode"},
+            {"Sec-Fetch-User", "sec-fetch-user"},
+            {"Sec-Fetch-Dest", "sec-fetch-dest"},
+            {"DNT", "dnt"}
+    };
+
+    private static boolean bytesEqual(byte[] src, int offset, int length, String ascii, boolean ignoreCase) {
+        if (ascii.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = src[offset + i];
+            if (ignoreCase && 'A' <= b && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //返回{原始写法, 小写}
+    private static String[] resolveFieldName(byte[] src, int offset, int length) {
+        for (String[] names : WELL_KNOWN_FIELD_NAMES) {
+            if (bytesEqual(src, offset, length, names[0], false)) {
+                return names;
+            }
+        }
+        String key = new String(src, offset, length, StandardCharsets.ISO_8859_1);
+        for (String[] names : WELL_KNOWN_FIELD_NAMES) {
+            if (bytesEqual(src, offset, length, names[1], true)) {
+                return new String[] {key, names[1]};
+            }
+        }
+        return new String[] {key, key.toLowerCase()};
+    }
+
+    /**
+     * 与{@link #fromRequestStreamLimited(InputStream, StringBuilder, int)}的作用和返回值相同，但直接在reader的缓冲区上解析，不会为每一行创建中间String。
+     */
+    public int fromRequestHeadReader(HttpHeadReader reader, int maxHeaderSize) throws IOException {
+        int size = 0;
+        while (true) {
+            //至少读入足以判断字段名格式的字节数，使格式错误的行与逐行读取时一样先被判为INVALID_DATA，而后才检查长度
+            int length = reader.readLine(Math.max(maxHeaderSize - size, 34));
+            if (length == HttpHeadReader.LINE_TOO_LONG) {
+                int start = reader.getLineStart();
+                return findFieldSeparator(reader.getBuffer(), start, start + reader.getBufferedLength()) == -1 ? INVALID_DATA : HEADER_SIZE_EXCEED;
+            }
+            if (length == 0) {
+                return SUCCESS;
+            }
+            byte[] line = reader.getBuffer();
+            int start = reader.getLineStart();
+            int end = start + length;
+            int findPos = findFieldSeparator(line, start, end);
+            if (findPos == -1) {
+                return INVALID_DATA;
+            }
+            String[] names = resolveFieldName(line, start, findPos - start);
+            String value = new String(line, findPos + 2, end - findPos - 2, StandardCharsets.ISO_8859_1);
+            if (names[1].equals("cookie")) {
+                parseRequestCookies(value, cookies);
+            }
+            else {
+                headers.put(names[1], new String[] {names[0], value});
+            }
+            size += length;
+            if (size > maxHeaderSize) {
+                return HEADER_SIZE_EXCEED;
+            }
+        }
+    }
+
+    //查找字段名之后的": "，字段名须为1~32个字节，格式不正确则返回-1
+    private static int findFieldSeparator(byte[] line, int start, int end) {
+        for (int i = start; i + 1 < end && i - start <= 32; i++) {
+            if (line[i] == ':' && line[i + 1] == ' ') {
+                return i == start ? -1 : i;
+            }
+        }
+        return -1;
+    }
+
     //此方法会接收多余的空行
     public static HttpHeaders fromRequestStream(InputStream in, StringBuilder bufferReuse) throws IOException {
         HttpHeaders headers = new HttpHeaders();
@@ -133,6 +133,108 @@ public final class HttpRequestInfo {
         }
     }
 
+    /**
+     * 与{@link #fromHttpStream(InputStream, int, int)}的作用和返回值相同，但直接在reader的缓冲区上解析请求行和请求头。
+     * reader应在同一连接的多次请求间复用。
+     */
+    public int fromHttpStream(HttpHeadReader reader, int maxPathLength, int maxHeaderSize) throws IOException {
+        //请求行的最大长度：method(最多7字节) + 空格 + uri + 空格 + "HTTP/" + 版本号
+        int length = reader.readLine(maxPathLength + 32);
+        byte[] line = reader.getBuffer();
+        int start = reader.getLineStart();
+        if (length == HttpHeadReader.LINE_TOO_LONG) {
+            //请求行过长，若能解析出method，且uri本身超过maxPathLength，则说明是uri过长；uri长度正常时是其他部分过长，视为无效数据
+            int buffered = start + reader.getBufferedLength();
+            int end = Math.min(buffered, start + 8);
+            for (int i = start + 1; i < end; i++) {
+                if (line[i] == ' ') {
+                    return indexOf(line, ' ', i + 1, Math.min(buffered, i + 2 + maxPathLength)) == -1 ? PATH_LENGTH_EXCEED : INVALID_DATA;
+                }
+            }
+            return INVALID_DATA;
+        }
+        int end = start + length;
+
+        //解析method
+        int findPos = indexOf(line, ' ', start, Math.min(end, start + 8));
+        if (findPos == -1 || findPos == start) {
+            return INVALID_DATA;
+        }
+        method = resolveMethod(line, start, findPos - start);
+        findPos++;
+
+        //解析uri
+        int findEnd = indexOf(line, ' ', findPos, end);
+        if (findEnd == -1 || findEnd - findPos == 0) {
+            return INVALID_DATA;
+        }
+        if (findEnd - findPos > maxPathLength) {
+            return PATH_LENGTH_EXCEED;
+        }
+        int parameterSep = indexOf(line, '?', findPos, findEnd);
+        String uri;
+        if (parameterSep == -1) {
+            uri = new String(line, findPos, findEnd - findPos, StandardCharsets.ISO_8859_1);
+            pathParameters = null;
+        }
+        else {
+            uri = new String(line, findPos, parameterSep - findPos, StandardCharsets.ISO_8859_1);
+            pathParameters = new String(line, parameterSep + 1, findEnd - parameterSep - 1, StandardCharsets.ISO_8859_1);
+        }
+        try {
+            this.uri = NetURI.parse(uri);
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return INVALID_DATA;
+        }
+        findPos = findEnd + 1;
+
+        //解析protocolVersion
+        if (end - findPos < 5 || line[findPos] != 'H' || line[findPos + 1] != 'T' || line[findPos + 2] != 'T' || line[findPos + 3] != 'P' || line[findPos + 4] != '/') {
+            return INVALID_DATA;
+        }
+        findPos += 5;
+        if (end - findPos == 3 && line[findPos] == '1' && line[findPos + 1] == '.' && line[findPos + 2] == '1') {
+            protocolVersion = "1.1";
+        }
+        else {
+            protocolVersion = new String(line, findPos, end - findPos, StandardCharsets.ISO_8859_1);
+            try {
+                Float.parseFloat(protocolVersion);
+            }
+            catch (NumberFormatException e) {
+                return INVALID_DATA;
+            }
+        }
+        switch (headers.fromRequestHeadReader(reader, maxHeaderSize)) {
+            case HttpHeaders.INVALID_DATA:
+                return INVALID_DATA;
+            case HttpHeaders.HEADER_SIZE_EXCEED:
+                return HEADER_SIZE_EXCEED;
+            default:
+                return SUCCESS;
+        }
+    }
+
+    private static int indexOf(byte[] src, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (src[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String resolveMethod(byte[] src, int offset, int length) {
+        if (length == 3 && src[offset] == 'G' && src[offset + 1] == 'E' && src[offset + 2] == 'T') {
+            return "GET";
+        }
+        if (length == 4 && src[offset] == 'P' && src[offset + 1] == 'O' && src[offset + 2] == 'S' && src[offset + 3] == 'T') {
+            return "POST";
+        }
+        return new String(src, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
     public String toAbstractString() {
         return method + " " + NetURI.toString(uri) + (pathParameters == null ? "" : "?" + pathParameters ) + " HTTP/" + protocolVersion;
     }
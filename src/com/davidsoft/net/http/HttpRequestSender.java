@@ -21,6 +21,7 @@ public class HttpRequestSender {
 
     public void send(OutputStream out) throws IOException {
         boolean hasContent;
+        boolean chunkedTransfer = false;
         DirectReferByteArrayOutputStream buffer = null;
         String contentEncoding = null;
 
@@ -31,7 +32,7 @@ public class HttpRequestSender {
         }
         else {
             if (contentProvider.useChunkedTransfer()) {
-                requestInfo.headers.setFieldValue("Transfer-Encoding", "chunked");
+                chunkedTransfer = true;
                 hasContent = true;
             }
             else {
@@ -50,6 +51,14 @@ public class HttpRequestSender {
                     if (!HttpContentEncodedStreamFactory.getSupportedContentEncodings().contains(contentEncoding)) {
                         throw new IllegalArgumentException("不支持的ContentEncoding：" + contentEncoding);
                     }
+                    //过大的Content在压缩时改用ChunkedTransfer，避免在内存中缓冲整个压缩结果
+                    if (!chunkedTransfer && HttpCompressionPolicy.getCurrent().shouldStream(contentLength)) {
+                        chunkedTransfer = true;
+                        requestInfo.headers.removeField("Content-Length");
+                    }
+                }
+                if (chunkedTransfer) {
+                    requestInfo.headers.setFieldValue("Transfer-Encoding", "chunked");
                 }
                 String value = contentProvider.getMimeType();
                 if (value != null) {
@@ -61,7 +70,7 @@ public class HttpRequestSender {
                         requestInfo.headers.setFieldValue("Content-Type", value + "; charset=" + charset.displayName());
                     }
                 }
-                if (!contentProvider.useChunkedTransfer()) {
+                if (!chunkedTransfer) {
                     if (contentEncoding == null) {
                         requestInfo.headers.setFieldValue("Content-Length", String.valueOf(contentLength));
                     }
@@ -83,7 +92,7 @@ public class HttpRequestSender {
         requestInfo.toHttpStream(out);
         out.write(CRLF_BYTES);
         if (hasContent) {
-            if (contentProvider.useChunkedTransfer()) {
+            if (chunkedTransfer) {
                 HttpChunkedOutputStream chunkedOut = new HttpChunkedOutputStream(out);
                 EncodingOutputStream decorated = HttpContentEncodedStreamFactory.instanceOutputStream(chunkedOut, contentEncoding);
                 contentProvider.onProvide(decorated);
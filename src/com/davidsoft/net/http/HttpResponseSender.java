@@ -2,6 +2,7 @@ package com.davidsoft.net.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -9,26 +10,76 @@ public class HttpResponseSender {
 
     public final HttpResponseInfo responseInfo;
     private final HttpContentProvider contentProvider;
+    private boolean eTagVariesWithEncoding;
 
     public HttpResponseSender(HttpResponseInfo responseInfo, HttpContentProvider contentProvider) {
         this.responseInfo = responseInfo;
         this.contentProvider = contentProvider;
     }
 
+    /**
+     * 设置发送编码后的内容时，是否为ETag字段中的强ETag附加编码对应的后缀(见{@link HttpContentEncodedStreamFactory#eTagSuffixOf(String)})。
+     * 同一资源的不同编码是不同的表示，强ETag必须不同。
+     */
+    public void setETagVariesWithEncoding(boolean eTagVariesWithEncoding) {
+        this.eTagVariesWithEncoding = eTagVariesWithEncoding;
+    }
+
+    private void setContentEncoding(String contentEncoding) {
+        responseInfo.headers.setFieldValue("Content-Encoding", contentEncoding);
+        if (!eTagVariesWithEncoding) {
+            return;
+        }
+        String eTag = responseInfo.headers.getFieldValue("ETag");
+        if (eTag != null && eTag.length() >= 2 && eTag.startsWith("\"") && eTag.endsWith("\"")) {
+            responseInfo.headers.setFieldValue("ETag", eTag.substring(0, eTag.length() - 1) + HttpContentEncodedStreamFactory.eTagSuffixOf(contentEncoding) + "\"");
+        }
+    }
+
     //注：content-encoding的信息从requestInfo中获取，content-type、content-length、transfer-encoding等字段会被从contentProvider覆盖。
 
     public void send(OutputStream out, String contentEncoding) throws IOException {
+        send(out, null, contentEncoding);
+    }
+
+    /**
+     * @param channel out背后的channel(如SocketChannel)，可以为null。不为null时，不编码、不分块的Content会直接写入此channel(如文件的零拷贝发送)。
+     */
+    public void send(OutputStream out, WritableByteChannel channel, String contentEncoding) throws IOException {
         boolean hasContent;
+        boolean chunkedTransfer = false;
         DirectReferByteArrayOutputStream buffer = null;
 
+        HttpContentProvider contentProvider = this.contentProvider;
+        HttpCompressionPolicy compressionPolicy = HttpCompressionPolicy.getCurrent();
+        //过小或不值得压缩的Content不压缩
+        if (contentEncoding != null && contentProvider != null && !compressionPolicy.shouldCompress(
+                contentProvider.getMimeType(),
+                contentProvider.useChunkedTransfer() ? -1 : contentProvider.getContentLength()
+        )) {
+            contentEncoding = null;
+        }
+        //已预先编码好的Content直接发送，不再逐次编码
+        if (contentEncoding != null && contentProvider != null) {
+            HttpContentProvider encodedProvider = contentProvider.getEncodedProvider(contentEncoding);
+            if (encodedProvider != null) {
+                setContentEncoding(contentEncoding);
+                contentProvider = encodedProvider;
+                contentEncoding = null;
+            }
+        }
+
         long contentLength = -1;
         if (contentProvider == null) {
             hasContent = false;
-            responseInfo.headers.setFieldValue("Content-Length", "0");
+            //304的Content-Length若存在，则代表原Content的长度，此处不应写入0
+            if (responseInfo.responseCode != 304) {
+                responseInfo.headers.setFieldValue("Content-Length", "0");
+            }
         }
         else {
             if (contentProvider.useChunkedTransfer()) {
-                responseInfo.headers.setFieldValue("Transfer-Encoding", "chunked");
+                chunkedTransfer = true;
                 hasContent = true;
             }
             else {
@@ -39,14 +90,20 @@ public class HttpResponseSender {
                 }
                 else {
                     hasContent = true;
+                    //过大的Content在压缩时改用ChunkedTransfer，避免在内存中缓冲整个压缩结果
+                    chunkedTransfer = contentEncoding != null && compressionPolicy.shouldStream(contentLength);
                 }
             }
+            if (chunkedTransfer) {
+                responseInfo.headers.setFieldValue("Transfer-Encoding", "chunked");
+                responseInfo.headers.removeField("Content-Length");
+            }
             if (hasContent) {
                 if (contentEncoding != null) {
                     if (!HttpContentEncodedStreamFactory.getSupportedContentEncodings().contains(contentEncoding)) {
                         throw new IllegalArgumentException("不支持的ContentEncoding：" + contentEncoding);
                     }
-                    responseInfo.headers.setFieldValue("Content-Encoding", contentEncoding);
+                    setContentEncoding(contentEncoding);
                 }
                 String value = contentProvider.getMimeType();
                 if (value != null) {
@@ -58,7 +115,7 @@ public class HttpResponseSender {
                         responseInfo.headers.setFieldValue("Content-Type", value + "; charset=" + charset.displayName());
                     }
                 }
-                if (!contentProvider.useChunkedTransfer()) {
+                if (!chunkedTransfer) {
                     if (contentEncoding == null) {
                         responseInfo.headers.setFieldValue("Content-Length", String.valueOf(contentLength));
                     }
@@ -80,7 +137,7 @@ public class HttpResponseSender {
         responseInfo.toHttpStream(out);
         out.write("\r\n".getBytes(StandardCharsets.UTF_8));
         if (hasContent) {
-            if (contentProvider.useChunkedTransfer()) {
+            if (chunkedTransfer) {
                 HttpChunkedOutputStream chunkedOut = new HttpChunkedOutputStream(out);
                 EncodingOutputStream decorated = HttpContentEncodedStreamFactory.instanceOutputStream(chunkedOut, contentEncoding);
                 contentProvider.onProvide(decorated);
@@ -94,7 +151,10 @@ public class HttpResponseSender {
             }
             else {
                 if (contentEncoding == null) {
-                    contentProvider.onProvide(out);
+                    if (channel != null) {
+                        out.flush();
+                    }
+                    contentProvider.onProvide(out, channel);
                 }
                 else {
                     out.write(buffer.toByteArray(), 0, buffer.size());
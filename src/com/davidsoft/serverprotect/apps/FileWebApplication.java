@@ -1,6 +1,7 @@
 package com.davidsoft.serverprotect.apps;
 
 import com.davidsoft.net.http.*;
+import com.davidsoft.serverprotect.components.StaticFileCache;
 import com.davidsoft.url.URI;
 
 import java.io.File;
@@ -8,32 +9,55 @@ import java.io.IOException;
 
 public class FileWebApplication extends BaseWebApplication {
 
-    private HttpResponseSender fileResponse(File file) {
-        //找不到就404
-        if (!file.isFile()) {
-            return new HttpResponseSender(new HttpResponseInfo(404), null);
-        }
-        //找到但不能读就500
-        if (!file.canRead()) {
-            return new HttpResponseSender(new HttpResponseInfo(500), null);
-        }
-        HttpContentFileProvider provider;
+    private HttpResponseSender fileResponse(HttpRequestInfo requestInfo, File file) {
+        StaticFileCache.CachedFile cachedFile;
         try {
-            provider = new HttpContentFileProvider(file, null);
+            cachedFile = StaticFileCache.get(file);
         } catch (IOException e) {
+            //找到但不能读就500
             e.printStackTrace();
             return new HttpResponseSender(new HttpResponseInfo(500), null);
         }
-        return new HttpResponseSender(new HttpResponseInfo(200), provider);
+        //找不到就404
+        if (cachedFile == null) {
+            return new HttpResponseSender(new HttpResponseInfo(404), null);
+        }
+        //浏览器中的副本仍然有效就304
+        if (cachedFile.isNotModified(requestInfo.headers)) {
+            HttpResponseInfo responseInfo = new HttpResponseInfo(304);
+            responseInfo.headers.setFieldValue("ETag", cachedFile.getNotModifiedETag(requestInfo.headers));
+            responseInfo.headers.setFieldValue("Last-Modified", cachedFile.lastModifiedString);
+            responseInfo.headers.setFieldValue("Vary", "Accept-Encoding");
+            return new HttpResponseSender(responseInfo, null);
+        }
+        HttpContentProvider provider;
+        if (cachedFile.data != null) {
+            provider = new HttpContentBytesProvider(cachedFile.data, cachedFile.mimeType, null, cachedFile.encodedData);
+        }
+        else {
+            //未被缓存的文件在发送时才打开
+            if (!file.canRead()) {
+                return new HttpResponseSender(new HttpResponseInfo(500), null);
+            }
+            provider = new HttpContentFileProvider(file, cachedFile.mimeType, null, cachedFile.length, cachedFile.encodedFiles);
+        }
+        HttpResponseInfo responseInfo = new HttpResponseInfo(200);
+        responseInfo.headers.setFieldValue("ETag", cachedFile.eTag);
+        responseInfo.headers.setFieldValue("Last-Modified", cachedFile.lastModifiedString);
+        responseInfo.headers.setFieldValue("Vary", "Accept-Encoding");
+        //ETag按实际发送的编码附加后缀
+        HttpResponseSender responseSender = new HttpResponseSender(responseInfo, provider);
+        responseSender.setETagVariesWithEncoding(true);
+        return responseSender;
     }
 
     @Override
     protected HttpResponseSender onClientRequest(HttpRequestInfo requestInfo, HttpContentReceiver requestContent, int clientIp, URI requestRelativeURI) {
-        return fileResponse(new File(getApplicationRootFile() + requestRelativeURI.toString(File.separator, null)));
+        return fileResponse(requestInfo, new File(getApplicationRootFile() + requestRelativeURI.toString(File.separator, null)));
     }
 
     @Override
     protected HttpResponseSender onGetFavicon(HttpRequestInfo requestInfo, HttpContentReceiver requestContent, int clientIp, URI requestRelativeURI) {
-        return fileResponse(new File(getApplicationRootFile() + "favicon.ico"));
+        return fileResponse(requestInfo, new File(getApplicationRootFile() + "favicon.ico"));
     }
 }
@@ -2,14 +2,14 @@ package com.davidsoft.serverprotect.apps;
 
 import com.davidsoft.net.*;
 import com.davidsoft.net.http.*;
-import com.davidsoft.serverprotect.Utils;
+import com.davidsoft.serverprotect.components.ResponseCache;
+import com.davidsoft.serverprotect.components.UpstreamConnectionPool;
 import com.davidsoft.url.URI;
 
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.Map;
@@ -21,16 +21,19 @@ public class ForwardWebApplication extends BaseWebApplication {
     private final int targetPort;
     private final boolean targetSSL;
     private final boolean forwardIp;
+    private final ResponseCache responseCache;  //未开启缓存时为null
 
-    private Socket targetSocket;
-    private OutputStream targetOutputStream;
-    private InputStream targetInputStream;
+    //正在使用的到目标服务器的连接。事务完成(响应被完整转发给浏览器)后归还给连接池
+    private UpstreamConnectionPool.Connection targetConnection;
+    //作为leader发往目标服务器的请求，响应写入缓存(或确定不写入)后结束，其他并发的相同请求在等待它
+    private ResponseCache.Flight leadingFlight;
 
-    public ForwardWebApplication(String targetDomain, int targetPort, boolean targetSSL, boolean forwardIp) {
+    public ForwardWebApplication(String targetDomain, int targetPort, boolean targetSSL, boolean forwardIp, ResponseCache responseCache) {
         this.targetDomain = targetDomain;
         this.targetPort = targetPort;
         this.targetSSL = targetSSL;
         this.forwardIp = forwardIp;
+        this.responseCache = responseCache;
     }
 
     @Override
@@ -45,6 +48,15 @@ public class ForwardWebApplication extends BaseWebApplication {
 
     @Override
     protected HttpResponseSender onClientRequest(HttpRequestInfo requestInfo, HttpContentReceiver requestContent, int clientIp, URI requestRelativeURI) {
+        HttpResponseSender responseSender = forward(requestInfo, requestContent, clientIp, requestRelativeURI);
+        //响应不会写入缓存时，立即唤醒等待同一资源的其他请求，否则在响应发送完成后唤醒
+        if (!(responseSender instanceof HttpResponseForwardSender) || ((HttpResponseForwardSender) responseSender).pending == null) {
+            finishFlight();
+        }
+        return responseSender;
+    }
+
+    private HttpResponseSender forward(HttpRequestInfo requestInfo, HttpContentReceiver requestContent, int clientIp, URI requestRelativeURI) {
         //1. 将收到的请求转换为要发给目标服务器的格式
 
         Origin targetOrigin;
@@ -55,6 +67,33 @@ public class ForwardWebApplication extends BaseWebApplication {
             return null;
         }
 
+        //0. 查找缓存，新鲜的缓存直接返回，过期但可验证的缓存向目标服务器发送条件请求
+        String cacheKey = null;
+        ResponseCache.Entry cached = null;
+        if (responseCache != null && ResponseCache.isCacheableRequest(requestInfo, requestContent)) {
+            cacheKey = NetURI.toString(requestRelativeURI) + (requestInfo.pathParameters == null ? "" : "?" + requestInfo.pathParameters);
+            cached = responseCache.lookup(cacheKey, requestInfo);
+            if (cached != null && cached.isFresh() && !ResponseCache.requiresRevalidation(requestInfo.headers)) {
+                return buildCachedResponse(cached, requestInfo, targetOrigin);
+            }
+            //浏览器自己的条件请求原样转发，不再替换为缓存的验证字段
+            if (cached != null && (!cached.hasValidator() || ResponseCache.isConditionalRequest(requestInfo.headers))) {
+                cached = null;
+            }
+            //同一资源的并发请求只有一个发往目标服务器，其余的等待其响应写入缓存
+            finishFlight();
+            ResponseCache.Flight flight = responseCache.joinFlight(cacheKey, requestInfo);
+            if (flight.isLeader()) {
+                leadingFlight = flight;
+            }
+            else {
+                ResponseCache.Entry shared = flight.awaitEntry(requestInfo);
+                if (shared != null) {
+                    return buildCachedResponse(shared, requestInfo, targetOrigin);
+                }
+            }
+        }
+
 		HttpRequestInfo targetRequestInfo = new HttpRequestInfo(requestInfo);
 
         //更改请求地址
@@ -84,6 +123,11 @@ public class ForwardWebApplication extends BaseWebApplication {
         if (forwardIp) {
             targetRequestInfo.headers.setFieldValue("X-Forwarded-For", IP.toString(clientIp));
         }
+        //到目标服务器的连接由连接池复用，与浏览器是否复用连接无关
+        targetRequestInfo.headers.setFieldValue("Connection", "keep-alive");
+        if (cached != null) {
+            cached.addValidators(targetRequestInfo.headers);
+        }
         
         //2. 构造准备发给目标服务器的内容
         HttpRequestSender requestSender = new HttpRequestForwardSender(targetRequestInfo, requestContent);
@@ -91,56 +135,89 @@ public class ForwardWebApplication extends BaseWebApplication {
         HttpResponseInfo responseInfo;
         HttpContentReceiver targetContentReceiver;
 
-        //3. 尝试连接目标服务器，连不上、发生网络问题则向浏览器返回502
+        //上一个事务的连接没有被归还(如响应没有被发送)，则其状态未知，不能复用
+        releaseTargetConnection(false);
+        //复用的连接可能在检查之后才被目标服务器关闭，若请求没有Content(可以重发)，则换一个连接重试一次
+        boolean retryable = requestContent == null || !requestContent.hasContent();
+        while (true) {
+
+            //3. 从连接池获得到目标服务器的连接，连不上、发生网络问题则向浏览器返回502
 
-        if (targetSocket == null) {
             try {
-                if (targetSSL) {
-                    targetSocket = SSLSocketFactory.getDefault().createSocket(targetDomain, targetPort);
-                } else {
-                    targetSocket = new Socket(targetDomain, targetPort);
-                }
-                targetOutputStream = targetSocket.getOutputStream();
-                targetInputStream = targetSocket.getInputStream();
+                targetConnection = UpstreamConnectionPool.acquire(targetDomain, targetPort, targetSSL);
             } catch (IOException e) {
                 e.printStackTrace();
                 return new HttpResponseSender(new HttpResponseInfo(502), null);
             }
-        }
+            boolean reused = targetConnection.isReused();
 
-        //4. 向目标服务器发送请求，发生网络问题则断开连接（浏览器端自己会重传^_^）
+            //4. 向目标服务器发送请求，发生网络问题则断开连接（浏览器端自己会重传^_^）
 
-        try {
-            requestSender.send(targetOutputStream);
-        } catch (IOException e) {
-            Utils.closeWithoutException(targetSocket);
-            targetSocket = null;
-            return null;
-        }
+            try {
+                requestSender.send(targetConnection.out);
+                targetConnection.out.flush();
+            } catch (IOException e) {
+                releaseTargetConnection(false);
+                if (retryable && reused) {
+                    retryable = false;
+                    continue;
+                }
+                return null;
+            }
 
-        //5. 从目标服务器接收Response，发生网络问题则断开连接（浏览器端自己会重传^_^），不符合语法则向浏览器返回502
+            //5. 从目标服务器接收Response，发生网络问题则断开连接（浏览器端自己会重传^_^），不符合语法则向浏览器返回502
 
-        try {
-            responseInfo = HttpResponseInfo.fromHttpStream(targetInputStream);
-        } catch (IOException e) {
-            Utils.closeWithoutException(targetSocket);
-            targetSocket = null;
-            return null;
+            try {
+                responseInfo = HttpResponseInfo.fromHttpStream(targetConnection.in);
+            } catch (IOException e) {
+                releaseTargetConnection(false);
+                if (retryable && reused) {
+                    retryable = false;
+                    continue;
+                }
+                return null;
+            }
+            break;
         }
         if (responseInfo == null) {
-            Utils.closeWithoutException(targetSocket);
-            targetSocket = null;
+            releaseTargetConnection(false);
             return new HttpResponseSender(new HttpResponseInfo(502), null);
         }
-        targetContentReceiver = new HttpContentReceiver(targetInputStream, responseInfo.responseCode, responseInfo.headers);
+        targetContentReceiver = new HttpContentReceiver(targetConnection.in, responseInfo.responseCode, responseInfo.headers);
         if (targetContentReceiver.analyseContent() != HttpContentReceiver.ANALYSE_SUCCESS) {
-            Utils.closeWithoutException(targetSocket);
-            targetSocket = null;
+            releaseTargetConnection(false);
             return new HttpResponseSender(new HttpResponseInfo(502), null);
         }
-        
+        boolean targetReusable = isTargetReusable(responseInfo, targetContentReceiver);
+
+        //缓存仍然有效，以缓存的Content响应浏览器
+        if (cached != null && responseInfo.responseCode == 304) {
+            releaseTargetConnection(targetReusable);
+            return buildCachedResponse(responseCache.refresh(cached, responseInfo), requestInfo, targetOrigin);
+        }
+        //需在改写响应头之前保存一份原始的响应头
+        ResponseCache.Pending pending = null;
+        if (cacheKey != null) {
+            pending = responseCache.prepareStore(cacheKey, requestInfo, responseInfo, targetContentReceiver, isDelimited(targetContentReceiver));
+        }
+
         //6. 将收到的请求转换为要发浏览器的格式
+        rewriteResponse(requestInfo, responseInfo, targetOrigin);
+
+        //7. 发送给浏览器，发送完成后归还连接
+        return new HttpResponseForwardSender(responseInfo, targetContentReceiver, targetReusable, pending);
+    }
+
+    private HttpResponseSender buildCachedResponse(ResponseCache.Entry cached, HttpRequestInfo requestInfo, Origin targetOrigin) {
+        if (cached.isNotModifiedFor(requestInfo.headers)) {
+            return new HttpResponseSender(cached.newNotModifiedResponseInfo(), null);
+        }
+        HttpResponseInfo responseInfo = cached.newResponseInfo();
+        rewriteResponse(requestInfo, responseInfo, targetOrigin);
+        return cached.newSender(responseInfo);
+    }
 
+    private void rewriteResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo, Origin targetOrigin) {
         Origin clientOrigin = new Origin(targetSSL ? "http://" : "https://", getSelfHost());
         if (responseInfo.headers.containsField("Access-Control-Allow-Origin")) {
             responseInfo.headers.setFieldValue("Access-Control-Allow-Origin", clientOrigin.toString());
@@ -175,9 +252,36 @@ public class ForwardWebApplication extends BaseWebApplication {
                 entry.setValue(String.join("; ", patterns));
             }
         }
+    }
+
+    private static boolean isDelimited(HttpContentReceiver contentReceiver) {
+        return !contentReceiver.hasContent() || contentReceiver.hasSuspendedHeaders() || contentReceiver.getContentLength() != HttpContentInputStream.CONTENT_LENGTH_UNKNOWN;
+    }
+
+    //目标服务器的响应以Content-Length或ChunkedTransfer界定结尾，且没有要求关闭连接时，连接才能复用
+    private static boolean isTargetReusable(HttpResponseInfo responseInfo, HttpContentReceiver contentReceiver) {
+        String connection = responseInfo.headers.getFieldValue("Connection");
+        if ("close".equalsIgnoreCase(connection)) {
+            return false;
+        }
+        if (!"HTTP/1.1".equals(responseInfo.protocolVersion) && !"keep-alive".equalsIgnoreCase(connection)) {
+            return false;
+        }
+        return isDelimited(contentReceiver);
+    }
+
+    private void finishFlight() {
+        if (leadingFlight != null) {
+            leadingFlight.finish();
+            leadingFlight = null;
+        }
+    }
 
-        //7. 发送给浏览器
-        return new HttpResponseForwardSender(responseInfo, targetContentReceiver);
+    private void releaseTargetConnection(boolean reusable) {
+        if (targetConnection != null) {
+            UpstreamConnectionPool.release(targetConnection, reusable);
+            targetConnection = null;
+        }
     }
 
     @Override
@@ -187,9 +291,8 @@ public class ForwardWebApplication extends BaseWebApplication {
 
     @Override
     public void onDestroy() {
-        if (targetSocket != null) {
-            Utils.closeWithoutException(targetSocket);
-        }
+        releaseTargetConnection(false);
+        finishFlight();
         super.onDestroy();
     }
 
@@ -217,27 +320,47 @@ public class ForwardWebApplication extends BaseWebApplication {
         }
     }
 
-    private static class HttpResponseForwardSender extends HttpResponseSender {
+    private class HttpResponseForwardSender extends HttpResponseSender {
 
         private final HttpContentReceiver contentReceiver;
+        private final boolean targetReusable;
+        private final ResponseCache.Pending pending;    //不写入缓存时为null
 
-        public HttpResponseForwardSender(HttpResponseInfo responseInfo, HttpContentReceiver contentReceiver) {
+        public HttpResponseForwardSender(HttpResponseInfo responseInfo, HttpContentReceiver contentReceiver, boolean targetReusable, ResponseCache.Pending pending) {
             super(responseInfo, null);
             this.contentReceiver = contentReceiver;
+            this.targetReusable = targetReusable;
+            this.pending = pending;
         }
 
         @Override
-        public void send(OutputStream out, String contentEncoding) throws IOException {
-            responseInfo.toHttpStream(out);
-            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
-            if (contentReceiver != null && contentReceiver.hasContent()) {
-                contentReceiver.getContentRawInputStream().transferTo(out);
-                if (contentReceiver.hasSuspendedHeaders()) {
-                    contentReceiver.receiveSuspendedHeaders();
-                    contentReceiver.getSuspendedHeaders().toResponseStream(out);
-                    out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        public void send(OutputStream out, WritableByteChannel channel, String contentEncoding) throws IOException {
+            try {
+                responseInfo.toHttpStream(out);
+                out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+                //写入缓存的是目标服务器发来的原始Content(包括chunk的格式)
+                OutputStream contentOut = pending == null ? out : pending.wrap(out);
+                if (contentReceiver != null && contentReceiver.hasContent()) {
+                    contentReceiver.getContentRawInputStream().transferTo(contentOut);
+                    if (contentReceiver.hasSuspendedHeaders()) {
+                        contentReceiver.receiveSuspendedHeaders();
+                        contentReceiver.getSuspendedHeaders().toResponseStream(contentOut);
+                        contentOut.write("\r\n".getBytes(StandardCharsets.UTF_8));
+                    }
                 }
+            } catch (IOException e) {
+                releaseTargetConnection(false);
+                if (pending != null) {
+                    pending.discard();
+                }
+                finishFlight();
+                throw e;
+            }
+            releaseTargetConnection(targetReusable);
+            if (pending != null) {
+                pending.commit();
             }
+            finishFlight();
         }
     }
 
@@ -150,7 +150,7 @@ public final class SettingsWebApplication extends FileWebApplication {
         //2. 将PathsNode转成DagNode
         DagNode dagNode = pathsNode2DagNode(((ProtectNode) settingNodes[2]).paths);
         //3. 构造Protections的Json
-        LinkedHashMap<String, JsonNode> fields = new LinkedHashMap<>(10);
+        LinkedHashMap<String, JsonNode> fields = new LinkedHashMap<>(11);
         fields.put("blockAction", JsonNode.valueOf(((ProtectNode) settingNodes[2]).blockAction));
         fields.put("config", JsonNode.valueOf(((ProtectNode) settingNodes[2]).config));
         fields.put("illegalAgent", JsonNode.valueOf(((ProtectNode) settingNodes[2]).illegalAgent));
@@ -158,9 +158,14 @@ public final class SettingsWebApplication extends FileWebApplication {
         fields.put("illegalForward", JsonNode.valueOf(((ProtectNode) settingNodes[2]).illegalForward));
         fields.put("illegalFreq", JsonNode.valueOf(((ProtectNode) settingNodes[2]).illegalFreq));
         fields.put("illegalMethod", JsonNode.valueOf(((ProtectNode) settingNodes[2]).illegalMethod));
+        if (((ProtectNode) settingNodes[2]).illegalRateLimit != null) {
+            fields.put("illegalRateLimit", JsonNode.valueOf(((ProtectNode) settingNodes[2]).illegalRateLimit));
+        }
         fields.put("illegalRedirect", JsonNode.valueOf(((ProtectNode) settingNodes[2]).illegalRedirect));
         fields.put("illegalTrace", JsonNode.valueOf(((ProtectNode) settingNodes[2]).illegalTrace));
         fields.put("paths", JsonNode.valueOf(dagNode));
+        RateLimitNode[] rateLimitNodes = ((ProtectNode) settingNodes[2]).rateLimits;
+        fields.put("rateLimits", JsonNode.valueOf(rateLimitNodes == null ? new RateLimitNode[0] : rateLimitNodes));
         JsonNode protectJsonNode = new JsonNode(fields);
         //4. 构造黑名单的json
         BlackListManager.freeze();
@@ -1,6 +1,7 @@
 package com.davidsoft.serverprotect.apps;
 
 import com.davidsoft.net.Host;
+import com.davidsoft.serverprotect.components.ResponseCache;
 import com.davidsoft.serverprotect.components.Settings;
 import com.davidsoft.net.http.WebApplication;
 import com.davidsoft.url.URI;
@@ -26,7 +27,8 @@ public final class WebApplicationFactory {
                         webApplicationSettings.targetDomain,
                         webApplicationSettings.targetPort,
                         webApplicationSettings.targetSSL,
-                        webApplicationSettings.forwardIp
+                        webApplicationSettings.forwardIp,
+                        ResponseCache.getInstance(webApplicationSettings)
                 );
                 break;
             default:
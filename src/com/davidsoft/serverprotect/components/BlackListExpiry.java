@@ -0,0 +1,223 @@
+package com.davidsoft.serverprotect.components;
+
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * 黑名单到期移除，采用分层时间轮。
+ * <p>时间以秒为一格，共{@value #LEVELS}层，每层{@value #SLOT_COUNT}格，第L层的一格相当于第L-1层转一圈。每个封禁按距到期的时间放入对应层的格中，
+ * 加入与取出都是O(1)：低层转完一圈时，把高层当前格中的封禁重新分配到低层；第0层的指针走到的格即为到期的封禁。</p>
+ * <p>时间轮只记录(RegexIP, 解除时间)，不随黑名单的修改而删除：封禁被提前解除或延长时，原记录到期后与黑名单中当前的解除时间对不上，会被忽略。</p>
+ */
+public final class BlackListExpiry {
+
+    private static final String LOG_CATEGORY = "黑名单管理器";
+
+    private static final long TICK = 1000;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_COUNT = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVELS = 5;                //可覆盖2^30秒，更远的封禁先放在最高层，转到时再重新分配
+    private static final int REBUILD_THRESHOLD = 4096;  //时钟跳变超过此格数时，不再逐格推进，而是重建时间轮
+    private static final int SHRINK_CAPACITY = 64;      //格清空后，容量超过此值则释放
+
+    //时间轮中的一格
+    private static final class Slot {
+        private long[] regexIps;
+        private long[] expires;
+        private int count;
+
+        private void add(long regexIp, long expire) {
+            if (regexIps == null) {
+                regexIps = new long[8];
+                expires = new long[8];
+            }
+            else if (count == regexIps.length) {
+                regexIps = Arrays.copyOf(regexIps, count << 1);
+                expires = Arrays.copyOf(expires, count << 1);
+            }
+            regexIps[count] = regexIp;
+            expires[count] = expire;
+            count++;
+        }
+
+        private void clear() {
+            count = 0;
+            if (regexIps != null && regexIps.length > SHRINK_CAPACITY) {
+                regexIps = null;
+                expires = null;
+            }
+        }
+    }
+
+    private static final Slot[][] wheel = new Slot[LEVELS][SLOT_COUNT];
+    private static final Object lock = new Object();
+    private static long currentTick;    //已处理到的格
+    private static int pendingCount;
+    private static Timer timer;
+
+    //以下字段只在定时任务中修改
+    private static volatile long expiredCount;
+    private static volatile long skippedCount;
+
+    static {
+        for (Slot[] level : wheel) {
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                level[i] = new Slot();
+            }
+        }
+        currentTick = System.currentTimeMillis() / TICK;
+    }
+
+    static void startUp() {
+        timer = new Timer("BlackListExpiry", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                advance(System.currentTimeMillis());
+            }
+        }, TICK, TICK);
+    }
+
+    public static void shutDown() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    //minTick为第0层中尚未处理的最早一格
+    //需持有lock
+    private static void place(long regexIp, long expire, long minTick) {
+        //解除时间所在的格，在该格被处理时，当前时间必然已不早于解除时间
+        long expireTick = Math.max((expire + TICK - 1) / TICK, minTick);
+        long delta = expireTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (level == LEVELS - 1 && delta >= 1L << (SLOT_BITS * LEVELS)) {
+            //超出时间轮的范围，放在最高层最远的格中
+            expireTick = currentTick + (1L << (SLOT_BITS * LEVELS)) - (1L << (SLOT_BITS * level));
+        }
+        wheel[level][(int) (expireTick >>> (SLOT_BITS * level)) & SLOT_MASK].add(regexIp, expire);
+    }
+
+    /**
+     * 登记一个封禁的解除时间。
+     */
+    //此函数会被多个线程调用
+    static void schedule(long regexIp, long expire) {
+        synchronized (lock) {
+            place(regexIp, expire, currentTick + 1);
+            pendingCount++;
+        }
+    }
+
+    /**
+     * 清空时间轮，重新加载黑名单时调用。
+     */
+    static void clear() {
+        synchronized (lock) {
+            for (Slot[] level : wheel) {
+                for (Slot slot : level) {
+                    slot.clear();
+                }
+            }
+            pendingCount = 0;
+        }
+    }
+
+    //将格中的封禁按当前时间重新分配到低层
+    //需持有lock
+    private static void cascade(Slot slot, long minTick) {
+        int count = slot.count;
+        long[] regexIps = slot.regexIps;
+        long[] expires = slot.expires;
+        //先摘下格中的内容，避免重新分配时放回同一格
+        slot.regexIps = null;
+        slot.expires = null;
+        slot.count = 0;
+        for (int i = 0; i < count; i++) {
+            place(regexIps[i], expires[i], minTick);
+        }
+    }
+
+    //时钟跳变后，按新的时间重新分配所有封禁
+    //需持有lock
+    private static void rebuild(long tick) {
+        Slot all = new Slot();
+        for (Slot[] level : wheel) {
+            for (Slot slot : level) {
+                for (int i = 0; i < slot.count; i++) {
+                    all.add(slot.regexIps[i], slot.expires[i]);
+                }
+                slot.clear();
+            }
+        }
+        currentTick = tick - 1;
+        cascade(all, tick);
+    }
+
+    //此函数可能会被其他线程调用
+    private static void advance(long now) {
+        long targetTick = now / TICK;
+        Slot due = new Slot();
+        synchronized (lock) {
+            if (targetTick <= currentTick) {
+                //时钟回拨，等待时钟追上
+                return;
+            }
+            if (targetTick - currentTick > REBUILD_THRESHOLD) {
+                rebuild(targetTick);
+            }
+            while (currentTick < targetTick) {
+                currentTick++;
+                //自高层向低层，依次分配本格的上层格中的封禁。此时第0层的当前格尚未处理，到期的封禁可以直接放入
+                for (int level = LEVELS - 1; level > 0; level--) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                        cascade(wheel[level][(int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK], currentTick);
+                    }
+                }
+                Slot slot = wheel[0][(int) currentTick & SLOT_MASK];
+                for (int i = 0; i < slot.count; i++) {
+                    due.add(slot.regexIps[i], slot.expires[i]);
+                }
+                slot.clear();
+            }
+            pendingCount -= due.count;
+        }
+        if (due.count == 0) {
+            return;
+        }
+        int removeCount = BlackListManager.expireBlackList(due.regexIps, due.expires, due.count, now);
+        expiredCount += removeCount;
+        skippedCount += due.count - removeCount;
+        if (removeCount > 0) {
+            Program.logMain(Log.LOG_INFO, LOG_CATEGORY, "已移除 " + removeCount + " 个到期的封禁。");
+        }
+    }
+
+    /**
+     * @return 时间轮中等待到期的记录数，包括已被提前解除或延长的封禁留下的记录
+     */
+    public static int getPendingCount() {
+        synchronized (lock) {
+            return pendingCount;
+        }
+    }
+
+    /**
+     * @return 启动以来因到期而被移除的封禁数
+     */
+    public static long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * @return 启动以来到期时已被提前解除或延长，因而被忽略的记录数
+     */
+    public static long getSkippedCount() {
+        return skippedCount;
+    }
+}
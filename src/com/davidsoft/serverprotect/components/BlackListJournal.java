@@ -0,0 +1,252 @@
+package com.davidsoft.serverprotect.components;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 黑名单文件的追加写日志。
+ * <p>黑名单的每次修改以一行记录交给此类后立即返回，由专门的写线程批量写入文件(group commit)：写线程每次取走队列中积压的全部记录，合并为一次写入，
+ * 再按fsync策略决定是否刷到磁盘。修改黑名单的线程不会等待文件系统。</p>
+ * <p>记录数超过阈值(且超过黑名单的项数)时，写线程将当前黑名单整体写入临时文件，再原子地替换黑名单文件，即压缩。压缩的同时写出{@link BlackListSnapshot 二进制快照}，供下次加载使用。</p>
+ */
+public final class BlackListJournal {
+
+    private static final String LOG_CATEGORY = "黑名单日志";
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    public static final String FSYNC_ALWAYS = "always";
+    public static final String FSYNC_INTERVAL = "interval";
+    public static final String FSYNC_NEVER = "never";
+
+    //队列中除了记录(String)外的控制项
+    private static final Object COMPACT = new Object();
+    private static final Object STOP = new Object();
+
+    private static final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private static File file;
+    private static File snapshotFile;
+    private static String fsyncPolicy;
+    private static long fsyncInterval;
+    private static long compactThreshold;
+    private static Thread writerThread;
+
+    //以下字段只在写线程中访问
+    private static FileChannel channel;
+    private static long appendedSinceCompaction;
+    private static boolean dirty;       //有已写入但未刷到磁盘的记录
+    private static long lastForceTime;
+
+    static void startUp(File file, File snapshotFile) {
+        Settings.StaticSettings staticSettings = Settings.getStaticSettings();
+        BlackListJournal.file = file;
+        BlackListJournal.snapshotFile = snapshotFile;
+        fsyncPolicy = staticSettings.blackListFsyncPolicy;
+        fsyncInterval = staticSettings.blackListFsyncIntervalInMillis;
+        compactThreshold = staticSettings.blackListCompactThreshold;
+        writerThread = new Thread(BlackListJournal::runWriter, "BlackListJournal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "黑名单日志已启动，fsync策略：" + fsyncPolicy);
+    }
+
+    /**
+     * 停止写线程。已提交的记录会被全部写入并刷到磁盘。
+     */
+    public static void shutDown() {
+        if (writerThread == null) {
+            return;
+        }
+        queue.offer(STOP);
+        try {
+            writerThread.join();
+        } catch (InterruptedException ignored) {}
+        writerThread = null;
+    }
+
+    /**
+     * 提交一行记录。
+     */
+    //此函数会被多个线程调用
+    static void append(String line) {
+        queue.offer(line);
+    }
+
+    /**
+     * 要求写线程在写完已提交的记录后压缩黑名单文件。
+     */
+    //此函数会被多个线程调用
+    static void requestCompaction() {
+        queue.offer(COMPACT);
+    }
+
+    /**
+     * 等待已提交的记录全部写入并刷到磁盘。写线程未启动时立即返回。
+     */
+    //此函数会被多个线程调用
+    static void flush() {
+        if (writerThread == null) {
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        queue.offer(latch);
+        try {
+            latch.await();
+        } catch (InterruptedException ignored) {}
+    }
+
+    private static void runWriter() {
+        openChannel();
+        ArrayList<Object> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        boolean running = true;
+        while (running) {
+            Object first;
+            try {
+                first = FSYNC_INTERVAL.equals(fsyncPolicy) && dirty ? queue.poll(fsyncInterval, TimeUnit.MILLISECONDS) : queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first == null) {
+                //等待期间没有新记录，刷盘后继续等待
+                force();
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch);
+            for (Object item : batch) {
+                if (item instanceof String) {
+                    byte[] line = ((String) item).getBytes(StandardCharsets.UTF_8);
+                    if (buffer.remaining() < line.length + LINE_SEPARATOR.length) {
+                        buffer = writeBuffer(buffer, line.length + LINE_SEPARATOR.length);
+                    }
+                    buffer.put(line).put(LINE_SEPARATOR);
+                    appendedSinceCompaction++;
+                }
+                else if (item == COMPACT) {
+                    buffer = writeBuffer(buffer, 0);
+                    compact();
+                }
+                else if (item == STOP) {
+                    running = false;
+                }
+                else {
+                    buffer = writeBuffer(buffer, 0);
+                    force();
+                    ((CountDownLatch) item).countDown();
+                }
+            }
+            batch.clear();
+            buffer = writeBuffer(buffer, 0);
+            if (FSYNC_ALWAYS.equals(fsyncPolicy) || (FSYNC_INTERVAL.equals(fsyncPolicy) && System.currentTimeMillis() - lastForceTime >= fsyncInterval)) {
+                force();
+            }
+            if (appendedSinceCompaction > compactThreshold && appendedSinceCompaction > BlackListManager.size()) {
+                compact();
+            }
+        }
+        force();
+        closeChannel();
+    }
+
+    private static void openChannel() {
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            channel = null;
+            Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法写入 " + file.getAbsolutePath() + "，无法保存新的黑名单！");
+        }
+    }
+
+    private static void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            channel = null;
+        }
+    }
+
+    //将缓冲区中的内容写入文件，并保证返回的缓冲区至少还能容纳required字节
+    private static ByteBuffer writeBuffer(ByteBuffer buffer, int required) {
+        buffer.flip();
+        if (buffer.hasRemaining()) {
+            if (channel == null) {
+                openChannel();
+            }
+            if (channel != null) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    dirty = true;
+                } catch (IOException e) {
+                    Program.logMain(Log.LOG_WARNING, LOG_CATEGORY, "写入 " + file.getAbsolutePath() + " 失败：" + e.getMessage());
+                    closeChannel();
+                }
+            }
+        }
+        buffer.clear();
+        if (buffer.capacity() < required) {
+            buffer = ByteBuffer.allocate(required);
+        }
+        return buffer;
+    }
+
+    private static void force() {
+        lastForceTime = System.currentTimeMillis();
+        if (!dirty || channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            Program.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法将 " + file.getAbsolutePath() + " 刷到磁盘：" + e.getMessage());
+        }
+        dirty = false;
+    }
+
+    //将当前黑名单写入临时文件，刷盘后替换黑名单文件。此后提交的记录追加到新文件中
+    private static void compact() {
+        File tempFile = new File(file.getPath() + ".tmp");
+        StringBuilder text = new StringBuilder();
+        BlackListSnapshot.Records records = BlackListManager.snapshot(text);
+        try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer snapshot = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (snapshot.hasRemaining()) {
+                tempChannel.write(snapshot);
+            }
+            tempChannel.force(false);
+        } catch (IOException e) {
+            Program.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法写入 " + tempFile.getAbsolutePath() + "，黑名单未被压缩：" + e.getMessage());
+            return;
+        }
+        closeChannel();
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Program.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法替换 " + file.getAbsolutePath() + "，黑名单未被压缩：" + e.getMessage());
+            openChannel();
+            return;
+        }
+        //写线程是唯一写入黑名单文件的线程，此时文件内容与records一致
+        try {
+            BlackListSnapshot.write(snapshotFile, file, records);
+        } catch (IOException e) {
+            Program.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法写入 " + snapshotFile.getAbsolutePath() + "：" + e.getMessage());
+        }
+        openChannel();
+        dirty = false;
+        appendedSinceCompaction = 0;
+        Program.logMain(Log.LOG_INFO, LOG_CATEGORY, "黑名单文件已压缩。");
+    }
+}
@@ -3,11 +3,9 @@ package com.davidsoft.serverprotect.components;
 import com.davidsoft.net.RegexIP;
 import com.davidsoft.serverprotect.Utils;
 import com.davidsoft.net.RegexIpIndex;
+import com.davidsoft.net.RegexIpTrie;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.PrintStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Map;
@@ -20,23 +18,36 @@ public final class BlackListManager {
     private static final String LOG_CATEGORY = "黑名单管理器";
 
     private static final File FILE_BLOCKS = new File("configs" + File.separator + "blocks");
+    private static final File FILE_BLOCKS_SNAPSHOT = new File("configs" + File.separator + "blocks.bin");
 
     private static final ReentrantReadWriteLock memLock = new ReentrantReadWriteLock(true);
     private static final RegexIpIndex<long[]> blackList = new RegexIpIndex<>();
+    //blackList的只读副本，修改blackList后重新构建。判断IP是否被封禁时只读取此副本，不需要加锁
+    private static volatile RegexIpTrie blackListTrie = RegexIpTrie.EMPTY;
+    //主线程修改blackList后不立即重建副本，而是等取空消息队列后一并重建。以下两个字段只在主线程中访问
+    private static boolean blackListDirty;
+    private static long dirtySince;
+    private static final long MAX_PUBLISH_DELAY = 50000000;    //消息持续不断时，修改最多推迟50毫秒生效
     public static final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
     static void initBlackList() {
         loadBlackList();
+        BlackListJournal.startUp(FILE_BLOCKS, FILE_BLOCKS_SNAPSHOT);
         Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "ip黑名单加载成功。");
     }
 
     static void reloadBlackList() {
+        //先让尚未写入的记录落盘，否则重新加载会丢失它们
+        BlackListJournal.flush();
         loadBlackList();
         Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已应用新的ip黑名单，将在下一个连接时生效。");
     }
 
     private static void loadBlackList() {
-        String src = Utils.getFileString(FILE_BLOCKS, null);
+        long now = System.currentTimeMillis();
+        //有可用的二进制快照时，只需逐行解析快照之后追加到文本文件中的记录
+        BlackListSnapshot.Records records = BlackListSnapshot.read(FILE_BLOCKS_SNAPSHOT, FILE_BLOCKS, now);
+        String src = records == null ? Utils.getFileString(FILE_BLOCKS, null) : BlackListSnapshot.readText(FILE_BLOCKS, records.textLength);
         if (src == null) {
             Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法打开 " + FILE_BLOCKS.getAbsolutePath() + "，黑名单未被加载。");
             return;
@@ -44,9 +55,15 @@ public final class BlackListManager {
         Scanner scanner = new Scanner(src);
         memLock.writeLock().lock();
         blackList.clear();
+        BlackListExpiry.clear();
         int listCount = 0;
         int invalidCount = 0;
-        long now = System.currentTimeMillis();
+        if (records != null) {
+            for (int i = 0; i < records.count; i++) {
+                blackList.put(records.regexIps[i], new long[]{records.expires[i]});
+            }
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已从 " + FILE_BLOCKS_SNAPSHOT.getAbsolutePath() + " 加载 " + records.count + " 项。");
+        }
         while (scanner.hasNext()) {
             src = scanner.nextLine().trim();
             listCount++;
@@ -102,29 +119,94 @@ public final class BlackListManager {
             Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "黑名单中，无效/重复/过期的项目已超过半数，已启动清理。");
             cleanBlackListInner();
         }
+        for (Map.Entry<Long, long[]> entry : blackList.entrySet()) {
+            BlackListExpiry.schedule(entry.getKey(), entry.getValue()[0]);
+        }
+        publishBlackList();
+        blackListDirty = false;
         memLock.writeLock().unlock();
     }
 
-    private static void cleanBlackListInner() {
-        PrintStream out;
-        try {
-            out = new PrintStream(FILE_BLOCKS);
-        } catch (FileNotFoundException e) {
-            Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法写入 " + FILE_BLOCKS.getAbsolutePath() + "，无法保存新的黑名单！");
+    //需持有memLock的读锁或写锁
+    private static void publishBlackList() {
+        int size = blackList.size();
+        long[] regexIps = new long[size];
+        long[] expires = new long[size];
+        int i = 0;
+        for (Map.Entry<Long, long[]> entry : blackList.entrySet()) {
+            regexIps[i] = entry.getKey();
+            expires[i] = entry.getValue()[0];
+            i++;
+        }
+        blackListTrie = RegexIpTrie.build(regexIps, expires, size);
+    }
+
+    //需持有memLock的写锁
+    private static void markDirty() {
+        if (!blackListDirty) {
+            blackListDirty = true;
+            dirtySince = System.nanoTime();
+        }
+    }
+
+    /**
+     * 重建被{@link #addBlackList}与{@link #removeBlackList}修改过的副本。主线程取空消息队列后调用，一批连续的修改只重建一次。
+     */
+    static void publishPending() {
+        if (!blackListDirty) {
             return;
         }
-        for (Map.Entry<Long, long[]> entry : blackList.entrySet()) {
-            out.print(RegexIP.toString(entry.getKey()));
-            out.print("\t");
-            out.println(simpleDateFormat.format(entry.getValue()[0]));
+        //重建只读取blackList，不妨碍其他读者
+        memLock.readLock().lock();
+        try {
+            publishBlackList();
+        } finally {
+            memLock.readLock().unlock();
         }
-        out.close();
+        blackListDirty = false;
+    }
+
+    /**
+     * 消息队列一直取不空时，保证修改不会无限推迟。
+     */
+    static void publishOverdue() {
+        if (blackListDirty && System.nanoTime() - dirtySince >= MAX_PUBLISH_DELAY) {
+            publishPending();
+        }
+    }
+
+    private static void cleanBlackListInner() {
+        BlackListJournal.requestCompaction();
     }
 
     static void cleanBlackList() {
-        memLock.readLock().lock();
         cleanBlackListInner();
-        memLock.readLock().unlock();
+    }
+
+    /**
+     * @param text 当前黑名单的完整内容追加到此处，格式与黑名单文件相同
+     * @return 与text内容相同的黑名单记录
+     */
+    //此函数会在其他线程中调用
+    static BlackListSnapshot.Records snapshot(StringBuilder text) {
+        //simpleDateFormat不是线程安全的，而此函数只持有读锁
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        memLock.readLock().lock();
+        try {
+            int size = blackList.size();
+            long[] regexIps = new long[size];
+            long[] expires = new long[size];
+            int i = 0;
+            for (Map.Entry<Long, long[]> entry : blackList.entrySet()) {
+                regexIps[i] = entry.getKey();
+                expires[i] = entry.getValue()[0];
+                text.append(RegexIP.toString(regexIps[i])).append('\t').append(dateFormat.format(expires[i])).append(System.lineSeparator());
+                i++;
+            }
+            return new BlackListSnapshot.Records(regexIps, expires, i);
+        } finally {
+            memLock.readLock().unlock();
+        }
     }
 
     //返回：0-更新, -1-新建, 其他-未改变
@@ -148,19 +230,11 @@ public final class BlackListManager {
             result = queriedExpires[0];
         }
         if (result <= 0) {
-            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已禁止 " + RegexIP.toString(regexIp) + " 的访问，且将在 " + simpleDateFormat.format(expires) + " 解除。从下一个连接起开始生效。");
-            PrintStream out;
-            try {
-                out = new PrintStream(new FileOutputStream(FILE_BLOCKS, true));
-            } catch (FileNotFoundException e) {
-                Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法写入 " + FILE_BLOCKS.getAbsolutePath() + "，无法保存新的黑名单！");
-                memLock.writeLock().unlock();
-                return result;
-            }
-            out.print(RegexIP.toString(regexIp));
-            out.print("\t");
-            out.println(simpleDateFormat.format(expires));
-            out.close();
+            markDirty();
+            BlackListExpiry.schedule(regexIp, expires);
+            String expiresString = simpleDateFormat.format(expires);
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已禁止 " + RegexIP.toString(regexIp) + " 的访问，且将在 " + expiresString + " 解除。从下一个连接起开始生效。");
+            BlackListJournal.append(RegexIP.toString(regexIp) + "\t" + expiresString);
         }
         memLock.writeLock().unlock();
         return result;
@@ -173,30 +247,47 @@ public final class BlackListManager {
             return;
         }
         if (!blackList.removeExactly(regexIp)) {
+            memLock.writeLock().unlock();
             return;
         }
+        markDirty();
         Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已允许 " + RegexIP.toString(regexIp) + " 的访问。从下一个连接起开始生效。");
-        PrintStream out;
+        BlackListJournal.append("-" + RegexIP.toString(regexIp));
+        memLock.writeLock().unlock();
+    }
+
+    /**
+     * 移除到期的封禁。解除时间已被修改的项不受影响。
+     *
+     * @return 移除的项数
+     */
+    //此函数会在其他线程中调用
+    static int expireBlackList(long[] regexIps, long[] expires, int count, long now) {
+        memLock.writeLock().lock();
+        int removeCount = 0;
         try {
-            out = new PrintStream(new FileOutputStream(FILE_BLOCKS, true));
-        } catch (FileNotFoundException e) {
-            Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "无法写入 " + FILE_BLOCKS.getAbsolutePath() + "，无法保存新的黑名单！");
+            for (int i = 0; i < count; i++) {
+                long[] queriedExpires = blackList.getExactly(regexIps[i]);
+                if (queriedExpires == null || queriedExpires[0] != expires[i] || expires[i] > now) {
+                    continue;
+                }
+                blackList.removeExactly(regexIps[i]);
+                BlackListJournal.append("-" + RegexIP.toString(regexIps[i]));
+                removeCount++;
+            }
+            if (removeCount > 0) {
+                publishBlackList();
+            }
+        } finally {
             memLock.writeLock().unlock();
-            return;
         }
-        out.print("-");
-        out.println(RegexIP.toString(regexIp));
-        out.close();
-        memLock.writeLock().unlock();
+        return removeCount;
     }
 
     //此函数会在其他线程中调用
     public static boolean inBlackList(int ip) {
-        memLock.readLock().lock();
-        long[] queriedExpires = blackList.get(ip);
-        boolean ret = (queriedExpires != null && queriedExpires[0] > System.currentTimeMillis());
-        memLock.readLock().unlock();
-        return ret;
+        //多个项匹配时，以最晚解除的为准
+        return blackListTrie.getMax(ip) > System.currentTimeMillis();
     }
 
     //此函数会在其他线程中调用
@@ -0,0 +1,188 @@
+package com.davidsoft.serverprotect.components;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 黑名单的二进制快照，在压缩黑名单文件时与文本快照一同写出，启动或重新加载黑名单时整个读入内存，不需要逐行解析文本。
+ * <p>文件格式(大端序)：</p>
+ * <pre>
+ * int  魔数 "SPBL"
+ * int  版本号
+ * int  记录数
+ * int  保留
+ * long 写出此快照时黑名单文本文件的长度
+ * long 文本文件在此长度之前内容的CRC32，用于发现文本文件被改写
+ * 记录数 × (long RegexIP, long 解除时间)，按RegexIP升序排列
+ * </pre>
+ * <p>文本文件仍是导入导出的格式：加载时，快照之后追加到文本文件中的记录照常逐行解析；文本文件与快照对不上时(如被手工编辑过)，则放弃快照，完整解析文本文件。</p>
+ */
+final class BlackListSnapshot {
+
+    private static final int MAGIC = 0x5350424C;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 16;
+    private static final int CHECK_BUFFER_SIZE = 65536;
+
+    /**
+     * 一组黑名单记录。
+     */
+    static final class Records {
+        final long[] regexIps;
+        final long[] expires;
+        final int count;
+        final long textLength;  //读取快照时有效：快照覆盖到的文本文件长度
+
+        Records(long[] regexIps, long[] expires, int count) {
+            this(regexIps, expires, count, 0);
+        }
+
+        private Records(long[] regexIps, long[] expires, int count, long textLength) {
+            this.regexIps = regexIps;
+            this.expires = expires;
+            this.count = count;
+            this.textLength = textLength;
+        }
+    }
+
+    //文本文件[0, length)的CRC32。计算CRC远比逐行解析文本快
+    private static long computeTextCheck(FileChannel textChannel, long length) throws IOException {
+        CRC32 crc32 = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(CHECK_BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(CHECK_BUFFER_SIZE, length - position));
+            int read = textChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("文本文件比预期的短");
+            }
+            buffer.flip();
+            crc32.update(buffer);
+            position += read;
+        }
+        return crc32.getValue();
+    }
+
+    /**
+     * 写出快照。文本文件必须已是与records一致的最新内容。
+     */
+    static void write(File snapshotFile, File textFile, Records records) throws IOException {
+        long textLength;
+        long textCheck;
+        try (FileChannel textChannel = FileChannel.open(textFile.toPath(), StandardOpenOption.READ)) {
+            textLength = textChannel.size();
+            textCheck = computeTextCheck(textChannel, textLength);
+        }
+        //按RegexIP排序。RegexIP只有36位，与序号合并为一个long排序，避免装箱
+        long[] order = new long[records.count];
+        for (int i = 0; i < records.count; i++) {
+            order[i] = (records.regexIps[i] << 27) | i;
+        }
+        Arrays.sort(order);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + records.count * RECORD_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(records.count).putInt(0).putLong(textLength).putLong(textCheck);
+        for (long item : order) {
+            int index = (int) (item & ((1 << 27) - 1));
+            buffer.putLong(records.regexIps[index]).putLong(records.expires[index]);
+        }
+        buffer.flip();
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取文本文件从offset开始的内容。
+     *
+     * @return 读取失败时返回null
+     */
+    static String readText(File textFile, long offset) {
+        try (FileChannel textChannel = FileChannel.open(textFile.toPath(), StandardOpenOption.READ)) {
+            long length = textChannel.size() - offset;
+            if (length > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (textChannel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            //追加的记录由BlackListJournal以UTF-8写入
+            return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 读取快照。
+     *
+     * @param now 已到期的记录不返回
+     * @return 快照不存在、格式不正确或与文本文件对不上时返回null
+     */
+    static Records read(File snapshotFile, File textFile, long now) {
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+             FileChannel textChannel = FileChannel.open(textFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            //不使用内存映射：某些系统(如Windows)上，映射被GC回收前无法替换此文件，下次压缩黑名单时就无法写出新的快照
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            int count = buffer.getInt();
+            buffer.getInt();
+            long textLength = buffer.getLong();
+            long textCheck = buffer.getLong();
+            if (count < 0 || size != HEADER_SIZE + (long) count * RECORD_SIZE) {
+                return null;
+            }
+            if (textChannel.size() < textLength || computeTextCheck(textChannel, textLength) != textCheck) {
+                return null;
+            }
+            long[] regexIps = new long[count];
+            long[] expires = new long[count];
+            int valid = 0;
+            for (int i = 0; i < count; i++) {
+                long regexIp = buffer.getLong();
+                long expire = buffer.getLong();
+                if (expire > now) {
+                    regexIps[valid] = regexIp;
+                    expires[valid] = expire;
+                    valid++;
+                }
+            }
+            return new Records(regexIps, expires, valid, textLength);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Log.logMain(Log.LOG_WARNING, "黑名单管理器", "无法读取 " + snapshotFile.getAbsolutePath() + "：" + e.getMessage());
+            return null;
+        }
+    }
+}
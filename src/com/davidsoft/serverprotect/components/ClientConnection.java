@@ -6,37 +6,38 @@ import com.davidsoft.net.RegexIP;
 import com.davidsoft.net.http.*;
 import com.davidsoft.serverprotect.apps.WebApplicationFactory;
 import com.davidsoft.serverprotect.libs.PooledRunnable;
-import com.davidsoft.serverprotect.rulers.*;
 import com.davidsoft.url.URI;
 import com.davidsoft.url.URIIndex;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.util.ArrayList;
 
 /**
  * 此类用于处理客户端与服务端的通信。一个此类的实例对应一个浏览器的本服务器的连接。
  */
 public class ClientConnection implements PooledRunnable {
 
-    private static final class RulerNode {
-        private final String name;
-        private final Ruler ruler;
-        private final boolean block;
-        private final Settings.Precaution precaution;
-        private final int responseCode;
-
-        private RulerNode(String name, Ruler ruler, boolean block, Settings.Precaution precaution, int responseCode) {
-            this.name = name;
-            this.ruler = ruler;
-            this.block = block;
-            this.precaution = precaution;
-            this.responseCode = responseCode;
+    private static final String SERVER_NAME = "David Soft fsn™ Server (lite) v2.3.1";
+
+    //封禁IP的响应内容固定，预先序列化，供在接受连接时直接写出
+    private static final class BlockResponseHolder {
+        private static final byte[] BLOCK_RESPONSE = serializeBlockResponse();
+
+        private static byte[] serializeBlockResponse() {
+            HttpResponseInfo responseInfo = new HttpResponseInfo("HTTP/1.1", 233, "You Are Detected");
+            responseInfo.headers.setFieldValue("Server", SERVER_NAME);
+            responseInfo.headers.setFieldValue("Connection", "close");
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            try {
+                new HttpResponseSender(responseInfo, null).send(out, null);
+            } catch (IOException e) {
+                //Unreachable
+                throw new IllegalStateException(e);
+            }
+            return out.toByteArray();
         }
     }
 
@@ -44,110 +45,62 @@ public class ClientConnection implements PooledRunnable {
     private final int serverPort;   //当前服务端的端口号
     private final boolean ssl;      //false: http连接; true: https连接
     private final Settings.RuntimeSettings runtimeSettings;     //解析后的服务器配置文件。每个实例维护一个配置文件的引用，因为多个此类的实例将在不同的线程环境中工作，而且配置文件会被实时更改。
-    private final RulerNode[] rulers;   //解析后的防火墙规则
+    private final RulerPipeline.Node[] rulers;   //解析后的防火墙规则
+    private final HttpHeadReader headIn;    //reactor模式下，以reactor已收到的请求头构造的读取器；否则为null
+    private final ReactorServerThread reactor;  //reactor模式下，连接需要复用时将连接交还给此reactor；否则为null
 
     private boolean flag;
 
     public ClientConnection(Socket socket, int serverPort, boolean ssl) {
+        this(socket, serverPort, ssl, null, null);
+    }
+
+    public ClientConnection(Socket socket, int serverPort, boolean ssl, HttpHeadReader headIn, ReactorServerThread reactor) {
         this.socket = socket;
         this.serverPort = serverPort;
         this.ssl = ssl;
+        this.headIn = headIn;
+        this.reactor = reactor;
         runtimeSettings = Settings.getRuntimeSettings();
 
-        //从设置中创建ruler
-        ArrayList<RulerNode> rulerBuilder = new ArrayList<>(6);
-        switch (runtimeSettings.protections.precautionForIllegalFrequency.method) {
-            case "block":
-                rulerBuilder.add(new RulerNode("illegalFrequency", new FrequencyRuler(), true, runtimeSettings.protections.precautionForIllegalFrequency, 0));
-                break;
-            case "action":
-                rulerBuilder.add(new RulerNode("illegalFrequency", new FrequencyRuler(), false, runtimeSettings.protections.precautionForIllegalFrequency, 0));
-                break;
-        }
-        switch (runtimeSettings.protections.precautionForIllegalForward.method) {
-            case "block":
-                rulerBuilder.add(new RulerNode("illegalForward", new ForwardRuler(), true, runtimeSettings.protections.precautionForIllegalForward, 0));
-                break;
-            case "action":
-                rulerBuilder.add(new RulerNode("illegalForward", new ForwardRuler(), false, runtimeSettings.protections.precautionForIllegalForward, 0));
-                break;
-        }
-        switch (runtimeSettings.protections.precautionForIllegalAgent.method) {
-            case "block":
-                rulerBuilder.add(new RulerNode("illegalAgent", new AgentRuler(), true, runtimeSettings.protections.precautionForIllegalAgent, 0));
-                break;
-            case "action":
-                rulerBuilder.add(new RulerNode("illegalAgent", new AgentRuler(), false, runtimeSettings.protections.precautionForIllegalAgent, 0));
-                break;
-            default:
-                rulerBuilder.add(new RulerNode("illegalAgent", new AgentRuler(), false, null, 412));
-                break;
-        }
-        switch (runtimeSettings.protections.precautionForIllegalRedirect.method) {
-            case "block":
-                rulerBuilder.add(new RulerNode("illegalRedirect", new RedirectRuler(), true, runtimeSettings.protections.precautionForIllegalRedirect, 0));
-                break;
-            case "action":
-                rulerBuilder.add(new RulerNode("illegalRedirect", new RedirectRuler(), false, runtimeSettings.protections.precautionForIllegalRedirect, 0));
-                break;
-        }
-        switch (runtimeSettings.protections.precautionForIllegalTrace.method) {
-            case "block":
-                rulerBuilder.add(new RulerNode("illegalTrace", new SimpleTraceRuler(), true, runtimeSettings.protections.precautionForIllegalTrace, 0));
-                break;
-            case "action":
-                rulerBuilder.add(new RulerNode("illegalTrace", new SimpleTraceRuler(), false, runtimeSettings.protections.precautionForIllegalTrace, 0));
-                break;
-        }
-        rulers = new RulerNode[rulerBuilder.size()];
-        rulerBuilder.toArray(rulers);
+        //防火墙规则已随配置编译好，所有连接共享
+        rulers = runtimeSettings.rulerPipeline.nodes;
 
         flag = true;
     }
 
-    private HttpResponseSender doPrecautionForBlock() {
-        if ("disabled".equals(runtimeSettings.protections.precautionForBlackList.method)) {
-            return new HttpResponseSender(new HttpResponseInfo("HTTP/1.1", 233, "You Are Detected"), null);
+    /**
+     * @return 按当前配置，封禁IP的连接应收到的完整响应；为null代表直接断开连接
+     */
+    //此函数会在其他线程中调用
+    static byte[] getBlockResponse() {
+        if ("disabled".equals(Settings.getRuntimeSettings().protections.precautionForBlackList.method)) {
+            return BlockResponseHolder.BLOCK_RESPONSE;
         }
         else {
             return null;
         }
     }
 
-    private HttpResponseSender doPrecaution(Settings.Precaution precaution, boolean xhr) {
-        Settings.Action action = xhr ? precaution.xhrAction : precaution.action;
-        if ("shutdown".equals(action.actionType)) {
-            return null;
-        }
-        Settings.ActionContent content = action.actionContent;
-        if ("file".equals(content.type)) {
-            HttpContentFileProvider provider;
-            try {
-                provider = new HttpContentFileProvider(new File(content.content), null);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return new HttpResponseSender(new HttpResponseInfo(500), null);
-            }
-            return new HttpResponseSender(new HttpResponseInfo(200), provider);
+    private HttpResponseSender doPrecautionForBlock() {
+        if ("disabled".equals(runtimeSettings.protections.precautionForBlackList.method)) {
+            return new HttpResponseSender(new HttpResponseInfo("HTTP/1.1", 233, "You Are Detected"), null);
         }
         else {
-            return new HttpResponseSender(
-                    new HttpResponseInfo(200),
-                    new HttpContentStringProvider(content.content, StandardCharsets.UTF_8, content.mime, StandardCharsets.UTF_8)
-            );
+            return null;
         }
     }
 
     private void sendResponse(HttpResponseSender responseSender, boolean keepConnection, String contentEncoding, OutputStream out) throws IOException {
         //添油加醋
-        responseSender.responseInfo.headers.setFieldValue("Server", "David Soft fsn™ Server (lite) v2.3.1");
+        responseSender.responseInfo.headers.setFieldValue("Server", SERVER_NAME);
         if (keepConnection) {
             responseSender.responseInfo.headers.setFieldValue("Connection", "keep-alive");
         }
         else {
             responseSender.responseInfo.headers.setFieldValue("Connection", "close");
         }
-        responseSender.send(out, contentEncoding);
+        responseSender.send(out, socket.getChannel(), contentEncoding);
     }
 
     /**
@@ -194,13 +147,22 @@ public class ClientConnection implements PooledRunnable {
     }
 
     private void runInner(int clientIp) {
-        InputStream in;
+        HttpHeadReader in;
         OutputStream out;
         WebApplication webApplication = null;
 
         //获得输入输出流
         try {
-            in = socket.getInputStream();
+            //请求头的读取缓冲区在连接复用期间重复使用；reactor模式下由reactor提供，交还连接时一并交还
+            if (headIn == null) {
+                in = new HttpHeadReader(
+                        socket.getInputStream(),
+                        Settings.getStaticSettings().maxPathLength + Settings.getStaticSettings().maxHeaderSize + 1024
+                );
+            }
+            else {
+                in = headIn;
+            }
             out = socket.getOutputStream();
         } catch (IOException e) {
             com.davidsoft.serverprotect.Utils.closeWithoutException(socket, true);
@@ -220,9 +182,28 @@ public class ClientConnection implements PooledRunnable {
         }
 
         //连接复用的处理循环
+        boolean firstRequest = true;
         do {
             HttpResponseSender responseSender = null;
 
+            //reactor模式下，若已没有收到但未处理的数据，则将连接交还给reactor等待下一个请求，不再占用当前线程
+            if (reactor != null && !firstRequest) {
+                int available;
+                try {
+                    available = in.available();
+                } catch (IOException e) {
+                    available = -1;
+                }
+                if (available == 0) {
+                    if (webApplication != null) {
+                        webApplication.onDestroy();
+                    }
+                    reactor.park(socket.getChannel(), in.getBuffer());
+                    return;
+                }
+            }
+            firstRequest = false;
+
             //第一步：等待浏览器发来请求、解析请求
 
             HttpRequestInfo requestInfo = new HttpRequestInfo();
@@ -252,7 +233,7 @@ public class ClientConnection implements PooledRunnable {
                             break;
                         case "action":
                             //如果IllegalData规则设置为[返回指定内容]，则返回指定内容。
-                            responseSender = doPrecaution(runtimeSettings.protections.precautionForIllegalData, false);
+                            responseSender = runtimeSettings.rulerPipeline.illegalData.doAction(false);
                             if (responseSender == null) {
                                 Program.logRequest(Log.LOG_WARNING, IP.toString(clientIp), "\"发来不符合http语法的请求数据，已应用IllegalData规则。\" x");
                                 com.davidsoft.serverprotect.Utils.closeWithoutException(socket, true);
@@ -315,7 +296,7 @@ public class ClientConnection implements PooledRunnable {
                         responseSender = new HttpResponseSender(new HttpResponseInfo(501), null);
                         break;
                     case "action":
-                        responseSender = doPrecaution(runtimeSettings.protections.precautionForIllegalData, false);
+                        responseSender = runtimeSettings.rulerPipeline.illegalData.doAction(false);
                         break;
                     case "block":
                         //如果IllegalData规则设置为[封禁ip]，则封禁ip。
@@ -352,7 +333,7 @@ public class ClientConnection implements PooledRunnable {
                         responseSender = null;
                         break;
                     case "action":
-                        responseSender = doPrecaution(runtimeSettings.protections.precautionForIllegalData, false);
+                        responseSender = runtimeSettings.rulerPipeline.illegalData.doAction(false);
                         break;
                     case "block":
                         Program.addBlackList(RegexIP.fromIp(clientIp), System.currentTimeMillis() + runtimeSettings.protections.precautionForIllegalData.blockLengthInMinute * 60000);
@@ -431,11 +412,18 @@ public class ClientConnection implements PooledRunnable {
             //第四步：如果此APP启用了防火墙，则逐一判断规则
 
             if (webApplication.isProtectEnabled()) {
-                for (RulerNode ruler : rulers) {
-                    if (ruler.ruler.judge(clientIp, requestInfo)) {
+                //相邻两条规则共用一次计时，上一条规则的结束时间即为下一条规则的开始时间
+                long judgeStart = System.nanoTime();
+                for (RulerPipeline.Node ruler : rulers) {
+                    boolean passed = ruler.ruler.judge(clientIp, requestInfo, webApplicationSettings.name);
+                    long judgeEnd = System.nanoTime();
+                    ruler.statistics.record(judgeEnd - judgeStart, passed);
+                    judgeStart = judgeEnd;
+                    if (passed) {
                         continue;
                     }
                     if (ruler.block) {
+                        ruler.statistics.recordBlock();
                         Program.addBlackList(RegexIP.fromIp(clientIp), System.currentTimeMillis() + ruler.precaution.blockLengthInMinute * 60000);
                         responseSender = doPrecautionForBlock();
                         if (responseSender != null) {
@@ -463,7 +451,7 @@ public class ClientConnection implements PooledRunnable {
                         break;
                     }
                     else {
-                        responseSender = doPrecaution(ruler.precaution, xhr);
+                        responseSender = ruler.precaution.doAction(xhr);
                         if (responseSender != null) {
                             Program.logRequest(Log.LOG_WARNING, IP.toString(clientIp), "\"" + requestInfo.toAbstractString() + "\" " + responseSender.responseInfo.responseCode + " (触发" + ruler.name + "规则)");
                             try {
@@ -530,8 +518,8 @@ public class ClientConnection implements PooledRunnable {
             //第七步：将返回内容发送给浏览器之前，如果此APP启用了防火墙，则调用规则的onDoSomethingForResponse
 
             if (webApplication.isProtectEnabled()) {
-                for (RulerNode ruler : rulers) {
-                    ruler.ruler.onDoSomethingForResponse(responseSender.responseInfo);
+                for (RulerPipeline.Node ruler : rulers) {
+                    ruler.ruler.onDoSomethingForResponse(requestInfo, responseSender.responseInfo);
                 }
             }
 
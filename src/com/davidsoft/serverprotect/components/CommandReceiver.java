@@ -76,6 +76,11 @@ public final class CommandReceiver {
                 case "flushblacklist":
                     Program.flushBlacklist();
                     break;
+                case "rulerstats":
+                    for (RulerStatistics.Snapshot snapshot : RulerStatistics.snapshot()) {
+                        Program.logMain(Log.LOG_INFO, RulerStatistics.LOG_CATEGORY, snapshot.toString());
+                    }
+                    break;
             }
         }
     }
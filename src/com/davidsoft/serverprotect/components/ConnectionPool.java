@@ -12,9 +12,18 @@ public final class ConnectionPool {
     public static void startUp() {
         threadPool = new ThreadPool(
                 Settings.getStaticSettings().maxConnections,
-                Settings.getStaticSettings().maxServices
+                Settings.getStaticSettings().maxServices,
+                Settings.getStaticSettings().virtualThreads
         );
-        Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "连接池初始化成功！");
+        if (Settings.getStaticSettings().virtualThreads && !threadPool.isUsingVirtualThread()) {
+            Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "当前JDK不支持虚拟线程，已改为使用平台线程。");
+        }
+        if (threadPool.isUsingVirtualThread()) {
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "连接池初始化成功！(虚拟线程模式)");
+        }
+        else {
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "连接池初始化成功！");
+        }
     }
 
     public static void shutDown() {
@@ -26,6 +35,24 @@ public final class ConnectionPool {
         threadPool.active(runnable);
     }
 
+    /**
+     * 没有空闲的permit时不等待，直接返回false。
+     */
+    public static boolean tryActive(PooledRunnable runnable) {
+        return threadPool.tryActive(runnable);
+    }
+
+    /**
+     * 添加释放permit时的回调，回调不能阻塞。
+     */
+    public static void addReleaseListener(Runnable listener) {
+        threadPool.addReleaseListener(listener);
+    }
+
+    public static void removeReleaseListener(Runnable listener) {
+        threadPool.removeReleaseListener(listener);
+    }
+
     public static void urgeAll() {
         threadPool.urgeAll();
     }
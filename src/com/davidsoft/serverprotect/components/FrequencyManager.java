@@ -1,83 +1,219 @@
 package com.davidsoft.serverprotect.components;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Timer;
+import java.util.TimerTask;
 
+/**
+ * 按IP统计访问频率。
+ * <p>每个IP维护一个环形缓冲区，记录最近frequencyDetectTimes次被放行的请求时间。缓冲区未满，或其中最早的记录已超出检测区间时放行请求，否则拒绝。
+ * 被拒绝的请求不计入，与逐条统计区间内记录的结果完全一致，但每次查询只需O(1)。</p>
+ * <p>IP到缓冲区的映射按IP散列分为若干段，每段是一个以int为key的开放寻址表，各段独立加锁，不同IP的请求很少互相等待。长期不活跃的IP由定时任务清理。</p>
+ */
 public final class FrequencyManager {
 
     private static final String LOG_CATEGORY = "访问频率模块";
 
-    private static final class RequestNode {
-        private final int ip;
-        private final long when;
+    private static final int STRIPE_COUNT = 64;     //必须为2的幂
+    private static final long CLEAN_INTERVAL = 60000;
 
-        private RequestNode(int ip, long when) {
-            this.ip = ip;
-            this.when = when;
+    //检测参数，整体替换以保证两个值一致
+    private static final class Limits {
+        private final long frequencyDetectInterval;
+        private final int frequencyDetectTimes;
+
+        private Limits(long frequencyDetectInterval, int frequencyDetectTimes) {
+            this.frequencyDetectInterval = frequencyDetectInterval;
+            this.frequencyDetectTimes = frequencyDetectTimes;
         }
     }
 
-    private static final ReentrantLock lock = new ReentrantLock(true);
-    private static long frequencyDetectInterval;
-    private static int frequencyDetectTimes;
-    private static LinkedList<RequestNode> requestSequence;
+    //一个IP最近被放行的请求时间
+    private static final class Window {
+        private long[] times;
+        private int head;   //最早的记录
+        private int count;
+        private long latest;
+
+        private Window(int capacity) {
+            times = new long[capacity];
+        }
+
+        //需持有所在段的锁
+        private boolean tryAcquire(long requestTime, long frequencyDetectInterval, int frequencyDetectTimes) {
+            if (times.length != frequencyDetectTimes) {
+                resize(frequencyDetectTimes);
+            }
+            if (count < times.length) {
+                times[(head + count) % times.length] = requestTime;
+                count++;
+            }
+            else if (requestTime - times[head] >= frequencyDetectInterval) {
+                times[head] = requestTime;
+                head = (head + 1) % times.length;
+            }
+            else {
+                return false;
+            }
+            latest = requestTime;
+            return true;
+        }
+
+        //检测次数改变后，保留最近的记录
+        private void resize(int capacity) {
+            long[] newTimes = new long[capacity];
+            int keep = Math.min(count, capacity);
+            for (int i = 0; i < keep; i++) {
+                newTimes[i] = times[(head + count - keep + i) % times.length];
+            }
+            times = newTimes;
+            head = 0;
+            count = keep;
+        }
+    }
+
+    //以IP为key的开放寻址表(线性探测)，所有操作需持有此对象的锁
+    private static final class Stripe {
+        private int[] ips = new int[16];
+        private Window[] windows = new Window[16];  //为null代表空位
+        private int size;
+
+        private Window getOrCreate(int ip, int capacity) {
+            int mask = ips.length - 1;
+            int index = mix(ip) & mask;
+            while (windows[index] != null) {
+                if (ips[index] == ip) {
+                    return windows[index];
+                }
+                index = (index + 1) & mask;
+            }
+            Window window = new Window(capacity);
+            ips[index] = ip;
+            windows[index] = window;
+            if (++size > ips.length >> 1) {
+                rehash(ips.length << 1);
+            }
+            return window;
+        }
+
+        private void rehash(int length) {
+            int[] oldIps = ips;
+            Window[] oldWindows = windows;
+            ips = new int[length];
+            windows = new Window[length];
+            int mask = length - 1;
+            for (int i = 0; i < oldWindows.length; i++) {
+                if (oldWindows[i] == null) {
+                    continue;
+                }
+                int index = mix(oldIps[i]) & mask;
+                while (windows[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                ips[index] = oldIps[i];
+                windows[index] = oldWindows[i];
+            }
+        }
+
+        //移除最近一次放行已超出检测区间的IP，这些IP的下一次请求必然被放行，移除不影响结果
+        private int removeExpired(long now, long frequencyDetectInterval) {
+            int removeCount = 0;
+            for (int i = 0; i < windows.length; i++) {
+                if (windows[i] != null && now - windows[i].latest >= frequencyDetectInterval) {
+                    windows[i] = null;
+                    removeCount++;
+                }
+            }
+            if (removeCount > 0) {
+                size -= removeCount;
+                //线性探测的表中留下空位会截断探测链，因此重建
+                int length = 16;
+                while (size > length >> 1) {
+                    length <<= 1;
+                }
+                rehash(length);
+            }
+            return removeCount;
+        }
+    }
+
+    private static final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+    private static volatile Limits limits;
+    private static Timer timer;
+
+    static {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int mix(int ip) {
+        int h = ip * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
 
     public static void initManager() {
-        frequencyDetectInterval = Settings.getRuntimeSettings().protections.frequencyDetectIntervalInSecond * 1000;
-        frequencyDetectTimes = Settings.getRuntimeSettings().protections.frequencyDetectTimes;
+        notifySettingsChanged();
+        timer = new Timer("FrequencyManager", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                doCleanUp();
+            }
+        }, CLEAN_INTERVAL, CLEAN_INTERVAL);
         Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "访问频率模块初始化成功！");
     }
 
+    public static void shutDown() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
     public static void notifySettingsChanged() {
         Settings.RuntimeSettings runtimeSettings = Settings.getRuntimeSettings();
-        long frequencyDetectInterval = runtimeSettings.protections.frequencyDetectIntervalInSecond * 1000;
-        int frequencyDetectTimes = runtimeSettings.protections.frequencyDetectTimes;
-        try {
-            lock.lockInterruptibly();
-        } catch (InterruptedException e) {
-            return;
-        }
-        FrequencyManager.frequencyDetectInterval = frequencyDetectInterval;
-        FrequencyManager.frequencyDetectTimes = frequencyDetectTimes;
-        lock.unlock();
+        limits = new Limits(
+                runtimeSettings.protections.frequencyDetectIntervalInSecond * 1000,
+                runtimeSettings.protections.frequencyDetectTimes
+        );
     }
 
     //此函数可能会被其他线程调用
-    private static void startManagerIfNotStarted() {
-        if (requestSequence == null) {
-            requestSequence = new LinkedList<>();
+    private static void doCleanUp() {
+        long now = System.currentTimeMillis();
+        long frequencyDetectInterval = limits.frequencyDetectInterval;
+        int removeCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                removeCount += stripe.removeExpired(now, frequencyDetectInterval);
+            }
+        }
+        if (removeCount > 0) {
+            Program.logMain(Log.LOG_INFO, LOG_CATEGORY, "已清理 " + removeCount + " 个IP的访问记录。");
         }
     }
 
     //此函数可能会被其他线程调用
     public static boolean query(int ip, long requestTime) {
-        try {
-            lock.lockInterruptibly();
-        } catch (InterruptedException e) {
+        Limits limits = FrequencyManager.limits;
+        if (limits.frequencyDetectTimes <= 0) {
             return false;
         }
-        startManagerIfNotStarted();
+        Stripe stripe = stripes[(mix(ip) >>> 24) & (STRIPE_COUNT - 1)];
+        synchronized (stripe) {
+            return stripe.getOrCreate(ip, limits.frequencyDetectTimes).tryAcquire(requestTime, limits.frequencyDetectInterval, limits.frequencyDetectTimes);
+        }
+    }
 
-        Iterator<RequestNode> iterator = requestSequence.iterator();
+    /**
+     * @return 当前记录的IP数
+     */
+    public static int getTrackedIpCount() {
         int count = 0;
-        while (iterator.hasNext()) {
-            RequestNode node = iterator.next();
-            if (requestTime - node.when >= frequencyDetectInterval) {
-                iterator.remove();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.size;
             }
-            else if (node.ip == ip) {
-                count++;
-            }
-        }
-        if (count < frequencyDetectTimes) {
-            requestSequence.add(new RequestNode(ip, requestTime));
-            lock.unlock();
-            return true;
-        }
-        else {
-            lock.unlock();
-            return false;
         }
+        return count;
     }
 }
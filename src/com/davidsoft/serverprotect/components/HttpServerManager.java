@@ -1,7 +1,9 @@
 package com.davidsoft.serverprotect.components;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -19,7 +21,10 @@ public final class HttpServerManager {
         }
         else {
             try {
-                return new ServerSocket(port);
+                //由channel创建ServerSocket：reactor模式需要将其注册到selector上；accept得到的Socket也会带有SocketChannel，以便零拷贝发送文件
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port));
+                return serverChannel.socket();
             } catch (IOException e) {
                 e.printStackTrace();
                 return null;
@@ -27,12 +32,30 @@ public final class HttpServerManager {
         }
     }
 
+    private static ServerThread createServerThread(int port, boolean ssl) {
+        ServerSocket serverSocket = createServerSocket(port, ssl);
+        if (serverSocket == null) {
+            return null;
+        }
+        if (Settings.getStaticSettings().reactorMode) {
+            try {
+                return new ReactorServerThread(port, ssl, serverSocket);
+            } catch (IOException e) {
+                e.printStackTrace();
+                com.davidsoft.serverprotect.Utils.closeWithoutException(serverSocket, true);
+                return null;
+            }
+        }
+        return new ServerThread(port, ssl, serverSocket);
+    }
+
     public static boolean startUp() {
         Settings.RuntimeSettings runtimeSettings = Settings.getRuntimeSettings();
 
         for (Map.Entry<Integer, Settings.ApplicationMapping> entry : runtimeSettings.appMappings.entrySet()) {
-            ServerSocket serverSocket = createServerSocket(entry.getKey(), entry.getValue().ssl);
-            if (serverSocket == null) {
+            //创建线程，但不启动
+            ServerThread serverThread = createServerThread(entry.getKey(), entry.getValue().ssl);
+            if (serverThread == null) {
                 if (entry.getValue().ssl) {
                     Log.logMain(Log.LOG_ERROR, LOG_CATEGORY, "无法在" + entry.getKey() + "端口上建立SSL服务器。");
                 }
@@ -41,8 +64,7 @@ public final class HttpServerManager {
                 }
                 return false;
             }
-            //创建线程，但不启动
-            serverThreads.put(entry.getKey(), new ServerThread(entry.getKey(), entry.getValue().ssl, serverSocket));
+            serverThreads.put(entry.getKey(), serverThread);
         }
         for (ServerThread thread : serverThreads.values()) {
             if (thread.ssl) {
@@ -53,7 +75,12 @@ public final class HttpServerManager {
             }
             thread.start();
         }
-        Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "Http服务器启动成功！");
+        if (Settings.getStaticSettings().reactorMode) {
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "Http服务器启动成功！(reactor模式)");
+        }
+        else {
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "Http服务器启动成功！");
+        }
         return true;
     }
 
@@ -90,8 +117,8 @@ public final class HttpServerManager {
                 thread = null;
             }
             if (thread == null) {
-                ServerSocket serverSocket = createServerSocket(entry.getKey(), entry.getValue().ssl);
-                if (serverSocket == null) {
+                thread = createServerThread(entry.getKey(), entry.getValue().ssl);
+                if (thread == null) {
                     if (entry.getValue().ssl) {
                         Log.logMain(Log.LOG_ERROR, LOG_CATEGORY, "无法在" + entry.getKey() + "端口上建立SSL服务器。");
                     }
@@ -100,7 +127,6 @@ public final class HttpServerManager {
                     }
                 }
                 else {
-                    thread = new ServerThread(entry.getKey(), entry.getValue().ssl, serverSocket);
                     serverThreads.put(entry.getKey(), thread);
                     thread.start();
                     if (thread.ssl) {
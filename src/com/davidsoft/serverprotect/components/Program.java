@@ -1,5 +1,7 @@
 package com.davidsoft.serverprotect.components;
 
+import com.davidsoft.net.http.HttpCompressionPolicy;
+
 import java.io.IOException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
@@ -128,16 +130,24 @@ public final class Program {
             return;
         }
         BlackListManager.initBlackList();
+        BlackListExpiry.startUp();
         if (!TraceManager.startUp()) {
             Log.logMain(Log.LOG_ERROR, LOG_CATEGORY, "程序无法启动，因为无法初始化访问路径维护模块。");
             CommandReceiver.shutDown();
             return;
         }
         FrequencyManager.initManager();
+        TraceTokens.startUp();
+        RateLimitManager.startUp();
+        RulerPipeline.startUp();
+        HttpCompressionPolicy.setCurrent(Settings.getStaticSettings().compressionPolicy);
+        StaticFileCache.initManager();
+        UpstreamConnectionPool.startUp();
         ConnectionPool.startUp();
         if (!HttpServerManager.startUp()) {
             Log.logMain(Log.LOG_ERROR, LOG_CATEGORY, "程序无法启动，因为无法初始化Http服务器。");
             ConnectionPool.shutDown();
+            UpstreamConnectionPool.shutDown();
             TraceManager.shutDown();
             CommandReceiver.shutDown();
             return;
@@ -149,7 +159,15 @@ public final class Program {
         MessageItem messageItem;
         while (true) {
             try {
-                messageItem = messageQueue.take();
+                messageItem = messageQueue.poll();
+                if (messageItem == null) {
+                    //已处理完积压的消息，一并发布其间对黑名单的修改
+                    BlackListManager.publishPending();
+                    messageItem = messageQueue.take();
+                }
+                else {
+                    BlackListManager.publishOverdue();
+                }
             } catch (InterruptedException ignored) {
                 //注意：主线程不能interrupt!
                 return;
@@ -166,6 +184,7 @@ public final class Program {
                 case MESSAGE_APPLY_SETTINGS:
                     Settings.applyNewRuntimeSettings((Settings.RuntimeSettings) messageItem.objArg1);
                     FrequencyManager.notifySettingsChanged();
+                    ResponseCache.notifySettingsChanged();
                     HttpServerManager.remap();
                     ConnectionPool.urgeAll();
                     continue;
@@ -179,6 +198,7 @@ public final class Program {
                     }
                     Settings.applyNewRuntimeSettings(newSettings);
                     FrequencyManager.notifySettingsChanged();
+                    ResponseCache.notifySettingsChanged();
                     HttpServerManager.remap();
                     ConnectionPool.urgeAll();
                     continue;
@@ -190,6 +210,8 @@ public final class Program {
                     continue;
                 case MESSAGE_ADD_BLACKLIST_SYNC:
                     messageItem.resultArg = BlackListManager.addBlackList(messageItem.longArg, (((long)messageItem.intArg1) << 32) | messageItem.intArg2);
+                    //调用者在返回后即认为封禁已生效
+                    BlackListManager.publishPending();
                     messageItem.semaphore.release();
                     continue;
                 case MESSAGE_REMOVE_BLACKLIST:
@@ -207,6 +229,12 @@ public final class Program {
         Log.shutDown();
         HttpServerManager.shutDown();
         ConnectionPool.shutDown();
+        UpstreamConnectionPool.shutDown();
+        BlackListExpiry.shutDown();
+        BlackListJournal.shutDown();
+        FrequencyManager.shutDown();
+        RateLimitManager.shutDown();
+        RulerPipeline.shutDown();
         TraceManager.shutDown();
         CommandReceiver.shutDown();
     }
@@ -0,0 +1,160 @@
+package com.davidsoft.serverprotect.components;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * 按(IP, 限速策略)限制请求速率，采用GCRA(通用信元速率算法)。
+ * <p>每个(IP, 策略)只保存一个理论到达时间(TAT)：请求到达时，若TAT比当前时间晚出的部分不超过策略的容差则放行，并将TAT推后一个间隔；否则拒绝，TAT不变。
+ * 效果与令牌桶相同，但不需要保存请求历史，每个key占用的内存是固定的。</p>
+ * <p>状态按key散列分为若干段，每段是一个以long为key、long为value的开放寻址表，各段独立加锁。TAT已过去的key与新key等价，由定时任务清理。</p>
+ */
+public final class RateLimitManager {
+
+    private static final String LOG_CATEGORY = "限速模块";
+
+    private static final int STRIPE_COUNT = 64;     //必须为2的幂
+    private static final long CLEAN_INTERVAL = 60000;
+
+    //以(策略id << 32 | IP)为key、TAT为value的开放寻址表(线性探测)，所有操作需持有此对象的锁
+    private static final class Stripe {
+        private long[] keys = new long[16];
+        private long[] tats = new long[16];
+        private boolean[] used = new boolean[16];
+        private int size;
+
+        private int indexOf(long key) {
+            int mask = keys.length - 1;
+            int index = mix(key) & mask;
+            while (used[index] && keys[index] != key) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private void put(int index, long key, long tat) {
+            if (used[index]) {
+                tats[index] = tat;
+                return;
+            }
+            used[index] = true;
+            keys[index] = key;
+            tats[index] = tat;
+            if (++size > keys.length >> 1) {
+                rehash(keys.length << 1);
+            }
+        }
+
+        private void rehash(int length) {
+            long[] oldKeys = keys;
+            long[] oldTats = tats;
+            boolean[] oldUsed = used;
+            keys = new long[length];
+            tats = new long[length];
+            used = new boolean[length];
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    int index = indexOf(oldKeys[i]);
+                    used[index] = true;
+                    keys[index] = oldKeys[i];
+                    tats[index] = oldTats[i];
+                }
+            }
+        }
+
+        private int removeExpired(long now) {
+            int removeCount = 0;
+            for (int i = 0; i < used.length; i++) {
+                if (used[i] && tats[i] - now <= 0) {
+                    used[i] = false;
+                    removeCount++;
+                }
+            }
+            if (removeCount > 0) {
+                size -= removeCount;
+                //线性探测的表中留下空位会截断探测链，因此重建
+                int length = 16;
+                while (size > length >> 1) {
+                    length <<= 1;
+                }
+                rehash(length);
+            }
+            return removeCount;
+        }
+    }
+
+    private static final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+    private static final Timer timer = new Timer("RateLimitManager", true);
+
+    static {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public static void startUp() {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                doCleanUp();
+            }
+        }, CLEAN_INTERVAL, CLEAN_INTERVAL);
+        Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "限速模块初始化成功！");
+    }
+
+    public static void shutDown() {
+        timer.cancel();
+    }
+
+    //此函数可能会被其他线程调用
+    private static void doCleanUp() {
+        long now = System.nanoTime();
+        int removeCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                removeCount += stripe.removeExpired(now);
+            }
+        }
+        if (removeCount > 0) {
+            Program.logMain(Log.LOG_INFO, LOG_CATEGORY, "已清理 " + removeCount + " 个限速记录。");
+        }
+    }
+
+    /**
+     * @param requestTime 请求到达的时间，取自{@link System#nanoTime()}
+     * @return 是否放行
+     */
+    //此函数可能会被其他线程调用
+    public static boolean acquire(int ip, Settings.RateLimit rateLimit, long requestTime) {
+        long key = ((long) rateLimit.id << 32) | (ip & 0xFFFFFFFFL);
+        int hash = mix(key);
+        Stripe stripe = stripes[(hash >>> 26) & (STRIPE_COUNT - 1)];
+        synchronized (stripe) {
+            int index = stripe.indexOf(key);
+            long tat = stripe.used[index] && stripe.tats[index] - requestTime > 0 ? stripe.tats[index] : requestTime;
+            if (tat - requestTime > rateLimit.tolerance) {
+                return false;
+            }
+            stripe.put(index, key, tat + rateLimit.emissionInterval);
+            return true;
+        }
+    }
+
+    /**
+     * @return 当前记录的(IP, 策略)数
+     */
+    public static int getTrackedKeyCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.size;
+            }
+        }
+        return count;
+    }
+}
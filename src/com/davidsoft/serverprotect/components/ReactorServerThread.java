@@ -0,0 +1,401 @@
+package com.davidsoft.serverprotect.components;
+
+import com.davidsoft.net.http.HttpHeadReader;
+import com.davidsoft.serverprotect.Utils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * reactor模式下的服务线程。
+ * <p>所有空闲的连接都注册在同一个selector上，连接不占用线程，只有收到了完整的请求头后，才会交给连接池中的{@link ClientConnection}处理。</p>
+ * <p>{@link ClientConnection}处理完一次事务后，若连接需要复用，则通过{@link #park(SocketChannel, byte[])}将连接连同其请求头缓冲区交还给此线程，
+ * 下一个请求的请求头接收在同一缓冲区中，并由{@link ClientConnection}直接在其上解析。</p>
+ * <p>每个注册的连接都有截止时间：新连接及已开始接收请求头的连接须在readTimeoutInSecond内收到完整的请求头，复用的连接至多空闲keepAliveTimeoutInSecond，
+ * 到期即断开，以免缓慢发送请求头或长期空闲的连接一直占用资源。两种超时各自固定，按登记顺序排列即为按到期时间排列，因此各用一个队列，
+ * select()至多等待到最早的截止时间，每轮只需从队头移除到期的连接。</p>
+ * <p>此线程从不阻塞等待连接池：连接池已满时，已收到完整请求头的连接按顺序排队，连接池释放permit时唤醒此线程继续交出。排队超过readTimeoutInSecond的连接直接断开。</p>
+ */
+public class ReactorServerThread extends ServerThread {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * 注册在selector上的连接的状态，及尚未接收完整的请求头。新连接的缓冲区仅在连接上有数据到达后才会分配；复用的连接沿用上一个请求的缓冲区。
+     */
+    private static final class HeadBuffer {
+        private final SelectionKey key;
+        private byte[] data;
+        private int size;
+        private long deadline;      //毫秒，以System.nanoTime()计
+        private boolean keepAlive;  //复用的连接，尚未收到下一个请求的数据
+
+        private HeadBuffer(SelectionKey key) {
+            this.key = key;
+        }
+
+        private void append(byte[] src, int length) {
+            if (data == null) {
+                data = new byte[Math.max(length, 256)];
+            }
+            else if (size + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length << 1, size + length));
+            }
+            System.arraycopy(src, 0, data, size, length);
+            size += length;
+        }
+
+        //只需从上次接收的末尾前3个字节开始查找，因为\r\n\r\n可能被拆分在两次接收中
+        private boolean isComplete(int searchFrom) {
+            for (int i = Math.max(searchFrom - 3, 0); i + 3 < size; i++) {
+                if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    //队列中的一项截止时间。连接的截止时间被重新设定或连接已交出后，原来的项作废
+    private static final class Deadline {
+        private final HeadBuffer head;
+        private final long at;
+
+        private Deadline(HeadBuffer head, long at) {
+            this.head = head;
+            this.at = at;
+        }
+    }
+
+    //ClientConnection交还的连接及其请求头缓冲区
+    private static final class Parked {
+        private final SocketChannel channel;
+        private final byte[] buffer;
+
+        private Parked(SocketChannel channel, byte[] buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    //已收到完整的请求头，正在等待连接池的permit的连接
+    private static final class Ready {
+        private final SocketChannel channel;
+        private final ClientConnection connection;
+        private final long deadline;
+
+        private Ready(SocketChannel channel, ClientConnection connection, long deadline) {
+            this.channel = channel;
+            this.connection = connection;
+            this.deadline = deadline;
+        }
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Parked> parkedChannels;
+    private final ByteBuffer readBuffer;
+    private final int maxHeadSize;
+    private final long readTimeout;         //毫秒
+    private final long keepAliveTimeout;    //毫秒
+    private final ArrayDeque<Deadline> readDeadlines;
+    private final ArrayDeque<Deadline> keepAliveDeadlines;
+    private final ArrayDeque<Ready> readyConnections;
+    private final Runnable permitReleased;
+
+    public ReactorServerThread(int port, boolean ssl, ServerSocket serverSocket) throws IOException {
+        super(port, ssl, serverSocket);
+        serverChannel = serverSocket.getChannel();
+        if (serverChannel == null) {
+            throw new IllegalArgumentException("reactor模式需要由ServerSocketChannel创建的ServerSocket");
+        }
+        selector = Selector.open();
+        parkedChannels = new ConcurrentLinkedQueue<>();
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        //请求行 + 请求头的最大字节数，超过此值则直接交给ClientConnection，由其返回413或414
+        maxHeadSize = Settings.getStaticSettings().maxPathLength + Settings.getStaticSettings().maxHeaderSize + 1024;
+        readTimeout = Math.max(Settings.getStaticSettings().readTimeoutInSecond, 1) * 1000L;
+        keepAliveTimeout = Math.max(Settings.getStaticSettings().keepAliveTimeoutInSecond, 1) * 1000L;
+        readDeadlines = new ArrayDeque<>();
+        keepAliveDeadlines = new ArrayDeque<>();
+        readyConnections = new ArrayDeque<>();
+        permitReleased = selector::wakeup;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public void run() {
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeAll();
+            return;
+        }
+        ConnectionPool.addReleaseListener(permitReleased);
+        ArrayList<SelectionKey> readyKeys = new ArrayList<>();
+        while (flag) {
+            try {
+                //上一轮中为了注销key而执行的selectNow()可能已选出了新的key，此时不能阻塞等待
+                if (selector.selectedKeys().isEmpty()) {
+                    long timeout = nextDeadline();
+                    if (timeout == -1) {
+                        selector.select();
+                    }
+                    else {
+                        selector.select(Math.max(timeout - now(), 1));
+                    }
+                }
+                else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                break;
+            }
+            if (!flag) {
+                break;
+            }
+
+            //断开到期的连接
+            long now = now();
+            expire(readDeadlines, now);
+            expire(keepAliveDeadlines, now);
+
+            //交出排队等待连接池的连接
+            dispatchReady(now);
+
+            //接收ClientConnection交还的连接
+            Parked parked;
+            while ((parked = parkedChannels.poll()) != null) {
+                try {
+                    register(parked.channel, parked.buffer);
+                } catch (IOException | CancelledKeyException e) {
+                    Utils.closeWithoutException(parked.channel, true);
+                }
+            }
+
+            //处理新连接和数据到达
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    acceptConnections();
+                }
+                else if (key.isReadable() && readHead(key)) {
+                    key.cancel();
+                    readyKeys.add(key);
+                }
+            }
+            if (readyKeys.isEmpty()) {
+                continue;
+            }
+
+            //被cancel的key只有在下一次select后才会真正注销，注销后才能将channel切换回阻塞模式
+            try {
+                selector.selectNow();
+            } catch (IOException e) {
+                break;
+            }
+            for (SelectionKey key : readyKeys) {
+                dispatch((SocketChannel) key.channel(), (HeadBuffer) key.attachment());
+            }
+            readyKeys.clear();
+        }
+        closeAll();
+    }
+
+    private void acceptConnections() {
+        SocketChannel channel;
+        while (true) {
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            //新接受的channel仍是阻塞模式，可以直接写出响应
+            if (rejectIfBlocked(channel.socket())) {
+                continue;
+            }
+            try {
+                register(channel, null);
+            } catch (IOException e) {
+                Utils.closeWithoutException(channel, true);
+            }
+        }
+    }
+
+    //buffer为null代表新连接，否则为复用的连接，沿用其请求头缓冲区
+    private void register(SocketChannel channel, byte[] buffer) throws IOException {
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        HeadBuffer head = new HeadBuffer(key);
+        key.attach(head);
+        head.data = buffer;
+        head.keepAlive = buffer != null;
+        if (head.keepAlive) {
+            setDeadline(head, keepAliveDeadlines, now() + keepAliveTimeout);
+        }
+        else {
+            setDeadline(head, readDeadlines, now() + readTimeout);
+        }
+    }
+
+    private static void setDeadline(HeadBuffer head, ArrayDeque<Deadline> queue, long deadline) {
+        head.deadline = deadline;
+        queue.offer(new Deadline(head, deadline));
+    }
+
+    //移除队头已到期的项，断开仍以此为截止时间的连接
+    private static void expire(ArrayDeque<Deadline> queue, long now) {
+        Deadline deadline;
+        while ((deadline = queue.peek()) != null && now >= deadline.at) {
+            queue.poll();
+            if (deadline.head.deadline == deadline.at && deadline.head.key.isValid()) {
+                deadline.head.key.cancel();
+                Utils.closeWithoutException(deadline.head.key.channel(), true);
+            }
+        }
+    }
+
+    //跳过队头已作废的项，返回队头的截止时间，队列为空则返回-1
+    private static long peekDeadline(ArrayDeque<Deadline> queue) {
+        Deadline deadline;
+        while ((deadline = queue.peek()) != null && (deadline.head.deadline != deadline.at || !deadline.head.key.isValid())) {
+            queue.poll();
+        }
+        return deadline == null ? -1 : deadline.at;
+    }
+
+    //最早的截止时间，没有则返回-1
+    private long nextDeadline() {
+        long next = -1;
+        for (long deadline : new long[] {
+                peekDeadline(readDeadlines),
+                peekDeadline(keepAliveDeadlines),
+                readyConnections.isEmpty() ? -1 : readyConnections.peek().deadline
+        }) {
+            if (deadline != -1 && (next == -1 || deadline < next)) {
+                next = deadline;
+            }
+        }
+        return next;
+    }
+
+    //返回true代表已收到完整的请求头(或请求头已超过限制)，可以交给ClientConnection处理
+    private boolean readHead(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        readBuffer.clear();
+        int length;
+        try {
+            length = channel.read(readBuffer);
+        } catch (IOException e) {
+            length = -1;
+        }
+        if (length == -1) {
+            key.cancel();
+            Utils.closeWithoutException(channel, true);
+            return false;
+        }
+        if (length == 0) {
+            return false;
+        }
+        HeadBuffer head = (HeadBuffer) key.attachment();
+        if (head.keepAlive) {
+            //复用的连接开始发送下一个请求，改为按接收请求头计时
+            head.keepAlive = false;
+            setDeadline(head, readDeadlines, now() + readTimeout);
+        }
+        int searchFrom = head.size;
+        head.append(readBuffer.array(), length);
+        return head.isComplete(searchFrom) || head.size >= maxHeadSize;
+    }
+
+    private void dispatch(SocketChannel channel, HeadBuffer head) {
+        HttpHeadReader in;
+        try {
+            channel.configureBlocking(true);
+            //直接在已收到的请求头上解析，不再复制
+            in = new HttpHeadReader(channel.socket().getInputStream(), head.data, head.size);
+        } catch (IOException e) {
+            Utils.closeWithoutException(channel, true);
+            return;
+        }
+        ClientConnection connection = new ClientConnection(channel.socket(), port, ssl, in, this);
+        //从连接池申请permit，已有连接在排队时排在其后
+        if (readyConnections.isEmpty() && ConnectionPool.tryActive(connection)) {
+            return;
+        }
+        readyConnections.offer(new Ready(channel, connection, now() + readTimeout));
+    }
+
+    //按顺序交出排队的连接，直到连接池已满
+    private void dispatchReady(long now) {
+        Ready ready;
+        while ((ready = readyConnections.peek()) != null) {
+            if (now >= ready.deadline) {
+                readyConnections.poll();
+                Utils.closeWithoutException(ready.channel, true);
+                continue;
+            }
+            if (!ConnectionPool.tryActive(ready.connection)) {
+                return;
+            }
+            readyConnections.poll();
+        }
+    }
+
+    private void closeAll() {
+        ConnectionPool.removeReleaseListener(permitReleased);
+        Ready ready;
+        while ((ready = readyConnections.poll()) != null) {
+            Utils.closeWithoutException(ready.channel, true);
+        }
+        for (SelectionKey key : selector.keys()) {
+            Utils.closeWithoutException(key.channel(), true);
+        }
+        Parked parked;
+        while ((parked = parkedChannels.poll()) != null) {
+            Utils.closeWithoutException(parked.channel, true);
+        }
+        Utils.closeWithoutException(selector, true);
+    }
+
+    /**
+     * 将处理完事务、需要复用的连接交还给此线程，等待下一个请求。调用此方法后，调用者不能再操作此连接及缓冲区。
+     *
+     * @param buffer 此连接的请求头缓冲区，其中的数据应已全部处理完毕，下一个请求的请求头将接收在此缓冲区中
+     */
+    //此函数会在其他线程中调用
+    public void park(SocketChannel channel, byte[] buffer) {
+        if (!flag) {
+            Utils.closeWithoutException(channel, true);
+            return;
+        }
+        parkedChannels.offer(new Parked(channel, buffer));
+        selector.wakeup();
+    }
+
+    @Override
+    public void shutDown() {
+        super.shutDown();
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,937 @@
+package com.davidsoft.serverprotect.components;
+
+import com.davidsoft.net.http.HttpContentReceiver;
+import com.davidsoft.net.http.HttpHeaders;
+import com.davidsoft.net.http.HttpRequestInfo;
+import com.davidsoft.net.http.HttpResponseInfo;
+import com.davidsoft.net.http.HttpResponseSender;
+import com.davidsoft.serverprotect.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 转发APP的响应缓存，每个开启了缓存的转发APP一个实例。
+ * <p>遵循目标服务器给出的Cache-Control、Expires与Vary，过期但带有ETag或Last-Modified的响应会向目标服务器发送条件请求重新验证。</p>
+ * <p>存储分为两级：不超过maxMemoryObjectSize的响应存放在堆中，更大的响应写入磁盘文件并以内存映射的方式读取。两级各自按LRU淘汰。</p>
+ * <p>对同一资源的并发请求会被合并：只有第一个请求(leader)发往目标服务器，其余请求等待其响应写入缓存后直接使用缓存，等待超时则各自请求目标服务器。</p>
+ * <p>缓存的是目标服务器的原始响应(Content保留原有的Transfer-Encoding与Content-Encoding)，转发APP对响应头的改写在每次取出时重新进行。</p>
+ */
+public final class ResponseCache {
+
+    private static final String LOG_CATEGORY = "转发缓存";
+    private static final byte[] CRLF_BYTES = "\r\n".getBytes(StandardCharsets.UTF_8);
+
+    //逐跳字段，不随缓存的响应保存
+    private static final String[] HOP_BY_HOP_FIELDS = {"Connection", "Keep-Alive", "Proxy-Connection"};
+
+    //尚不知道目标服务器的Vary时合并在途请求所依据的请求字段。缓存的是目标服务器的原始Content，
+    //按Accept-Encoding协商出的压缩格式只对声明了相同编码的浏览器可用，不区分编码的话等待者拿到的响应常常无法使用，只能再请求一次
+    private static final String[] DEFAULT_FLIGHT_VARY = {"accept-encoding"};
+
+    private static final HashMap<String, ResponseCache> instances = new HashMap<>();
+    private static final ReentrantLock instancesLock = new ReentrantLock();
+
+    /**
+     * 获得转发APP的响应缓存。缓存设置或目标服务器变化后会丢弃原有的缓存。
+     *
+     * @return 若此APP未开启缓存，则返回null
+     */
+    //此函数会被多个线程调用
+    public static ResponseCache getInstance(Settings.WebApplication webApplication) {
+        if (webApplication.forwardCache == null) {
+            return null;
+        }
+        instancesLock.lock();
+        try {
+            ResponseCache cache = instances.get(webApplication.name);
+            if (cache != null && cache.matches(webApplication)) {
+                return cache;
+            }
+            if (cache != null) {
+                cache.clear();
+            }
+            cache = new ResponseCache(webApplication.name, webApplication.forwardCache, originOf(webApplication));
+            instances.put(webApplication.name, cache);
+            return cache;
+        } finally {
+            instancesLock.unlock();
+        }
+    }
+
+    /**
+     * 应用新的配置后调用：丢弃已删除、已关闭缓存或目标服务器、缓存设置已变化的APP的缓存，释放其内存与磁盘文件。
+     */
+    public static void notifySettingsChanged() {
+        Settings.RuntimeSettings runtimeSettings = Settings.getRuntimeSettings();
+        instancesLock.lock();
+        try {
+            Iterator<ResponseCache> iterator = instances.values().iterator();
+            while (iterator.hasNext()) {
+                ResponseCache cache = iterator.next();
+                Settings.WebApplication webApplication = runtimeSettings.apps.get(cache.name);
+                if (webApplication == null || webApplication.forwardCache == null || !cache.matches(webApplication)) {
+                    iterator.remove();
+                    cache.clear();
+                    Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已丢弃 " + cache.name + " 的转发缓存。");
+                }
+            }
+        } finally {
+            instancesLock.unlock();
+        }
+    }
+
+    //缓存的key只是请求的URI，目标服务器变化后原有的响应都不再适用
+    private static String originOf(Settings.WebApplication webApplication) {
+        return (webApplication.targetSSL ? "https://" : "http://") + webApplication.targetDomain + ":" + webApplication.targetPort;
+    }
+
+    private boolean matches(Settings.WebApplication webApplication) {
+        return settings.equals(webApplication.forwardCache) && origin.equals(originOf(webApplication));
+    }
+
+    /**
+     * 判断一个来自浏览器的请求能否使用缓存：仅限没有Content、不带Authorization的GET请求，且浏览器未声明no-store。
+     */
+    public static boolean isCacheableRequest(HttpRequestInfo requestInfo, HttpContentReceiver requestContent) {
+        if (!"GET".equals(requestInfo.method)) {
+            return false;
+        }
+        if (requestContent != null && requestContent.hasContent()) {
+            return false;
+        }
+        if (requestInfo.headers.containsField("Authorization")) {
+            return false;
+        }
+        return !hasDirective(requestInfo.headers.getFieldValue("Cache-Control"), "no-store");
+    }
+
+    /**
+     * 浏览器要求不使用未经验证的缓存(如强制刷新)。
+     */
+    public static boolean requiresRevalidation(HttpHeaders requestHeaders) {
+        return hasDirective(requestHeaders.getFieldValue("Cache-Control"), "no-cache") || "no-cache".equalsIgnoreCase(requestHeaders.getFieldValue("Pragma"));
+    }
+
+    /**
+     * 浏览器自己发出了条件请求。此时不能再替浏览器附加条件字段。
+     */
+    public static boolean isConditionalRequest(HttpHeaders requestHeaders) {
+        return requestHeaders.containsField("If-None-Match") || requestHeaders.containsField("If-Modified-Since");
+    }
+
+    //解析Cache-Control，key为小写的指令名，value为指令值(没有值则为空串)
+    private static HashMap<String, String> parseCacheControl(String value) {
+        HashMap<String, String> directives = new HashMap<>();
+        if (value == null) {
+            return directives;
+        }
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int findPos = item.indexOf('=');
+            if (findPos == -1) {
+                directives.put(item.toLowerCase(), "");
+            }
+            else {
+                String directiveValue = item.substring(findPos + 1).trim();
+                if (directiveValue.length() >= 2 && directiveValue.startsWith("\"") && directiveValue.endsWith("\"")) {
+                    directiveValue = directiveValue.substring(1, directiveValue.length() - 1);
+                }
+                directives.put(item.substring(0, findPos).trim().toLowerCase(), directiveValue);
+            }
+        }
+        return directives;
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        return cacheControl != null && parseCacheControl(cacheControl).containsKey(directive);
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 一个已缓存的响应。此类的实例不可变，重新验证后会以新的实例替换。
+     */
+    public static final class Entry {
+        private final String key;
+        private final VaryIndex varyIndex;
+        private final String protocolVersion;
+        private final int responseCode;
+        private final String responseDescription;
+        private final HttpHeaders headers;
+        private final boolean shared;               //Cache-Control: public，可以响应带Cookie的请求
+        private final long storedTime;
+        private final long expiresAt;
+        private final byte[] body;                  //堆中存储
+        private final MappedByteBuffer mappedBody;  //磁盘存储
+        private final File file;
+        private final long bodyLength;
+
+        private Entry(String key, VaryIndex varyIndex, String protocolVersion, int responseCode, String responseDescription, HttpHeaders headers,
+                      boolean shared, long storedTime, long expiresAt, byte[] body, MappedByteBuffer mappedBody, File file, long bodyLength) {
+            this.key = key;
+            this.varyIndex = varyIndex;
+            this.protocolVersion = protocolVersion;
+            this.responseCode = responseCode;
+            this.responseDescription = responseDescription;
+            this.headers = headers;
+            this.shared = shared;
+            this.storedTime = storedTime;
+            this.expiresAt = expiresAt;
+            this.body = body;
+            this.mappedBody = mappedBody;
+            this.file = file;
+            this.bodyLength = bodyLength;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        public boolean hasValidator() {
+            return headers.containsField("ETag") || headers.containsField("Last-Modified");
+        }
+
+        /**
+         * 为发往目标服务器的请求附加条件字段，以便重新验证此响应。
+         */
+        public void addValidators(HttpHeaders targetRequestHeaders) {
+            String value = headers.getFieldValue("ETag");
+            if (value != null) {
+                targetRequestHeaders.setFieldValue("If-None-Match", value);
+            }
+            value = headers.getFieldValue("Last-Modified");
+            if (value != null) {
+                targetRequestHeaders.setFieldValue("If-Modified-Since", value);
+            }
+        }
+
+        /**
+         * 按浏览器的If-None-Match与If-Modified-Since判断浏览器中的副本是否与此响应一致。
+         */
+        public boolean isNotModifiedFor(HttpHeaders requestHeaders) {
+            String ifNoneMatch = requestHeaders.getFieldValue("If-None-Match");
+            if (ifNoneMatch != null) {
+                String eTag = headers.getFieldValue("ETag");
+                if (eTag == null) {
+                    return false;
+                }
+                if (eTag.startsWith("W/")) {
+                    eTag = eTag.substring(2);
+                }
+                for (String item : ifNoneMatch.split(",")) {
+                    item = item.trim();
+                    if (item.startsWith("W/")) {
+                        item = item.substring(2);
+                    }
+                    if (item.equals("*") || item.equals(eTag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            long since = parseHttpDate(requestHeaders.getFieldValue("If-Modified-Since"));
+            long lastModified = parseHttpDate(headers.getFieldValue("Last-Modified"));
+            return since != -1 && lastModified != -1 && lastModified <= since;
+        }
+
+        /**
+         * 构造304响应，仅包含与缓存相关的字段。
+         */
+        public HttpResponseInfo newNotModifiedResponseInfo() {
+            HttpResponseInfo responseInfo = new HttpResponseInfo(304);
+            for (String fieldName : new String[] {"ETag", "Last-Modified", "Cache-Control", "Expires", "Vary"}) {
+                String value = headers.getFieldValue(fieldName);
+                if (value != null) {
+                    responseInfo.headers.setFieldValue(fieldName, value);
+                }
+            }
+            return responseInfo;
+        }
+
+        /**
+         * 构造此响应的副本，可以随意修改。
+         */
+        public HttpResponseInfo newResponseInfo() {
+            HttpResponseInfo responseInfo = new HttpResponseInfo(protocolVersion, responseCode, responseDescription);
+            responseInfo.headers.mergeFields(new HttpHeaders(headers));
+            responseInfo.headers.setFieldValue("Age", String.valueOf(Math.max(0, (System.currentTimeMillis() - storedTime) / 1000)));
+            return responseInfo;
+        }
+
+        public HttpResponseSender newSender(HttpResponseInfo responseInfo) {
+            return new CachedResponseSender(responseInfo, this);
+        }
+    }
+
+    /**
+     * 原样发送缓存的响应，不再压缩或分块(Content本身已是目标服务器发来的格式)。
+     */
+    private static final class CachedResponseSender extends HttpResponseSender {
+
+        private final Entry entry;
+
+        private CachedResponseSender(HttpResponseInfo responseInfo, Entry entry) {
+            super(responseInfo, null);
+            this.entry = entry;
+        }
+
+        @Override
+        public void send(OutputStream out, WritableByteChannel channel, String contentEncoding) throws IOException {
+            responseInfo.toHttpStream(out);
+            out.write(CRLF_BYTES);
+            if (entry.body != null) {
+                out.write(entry.body);
+                return;
+            }
+            ByteBuffer buffer = entry.mappedBody.duplicate();
+            if (channel != null) {
+                out.flush();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            else {
+                byte[] bytes = new byte[Math.min(buffer.remaining(), 65536)];
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(buffer.remaining(), bytes.length);
+                    buffer.get(bytes, 0, length);
+                    out.write(bytes, 0, length);
+                }
+            }
+        }
+    }
+
+    //同一URI下的各个Vary变体共用的信息
+    private static final class VaryIndex {
+        private final String[] fieldNames;
+        private int variants;
+
+        private VaryIndex(String[] fieldNames) {
+            this.fieldNames = fieldNames;
+        }
+    }
+
+    /**
+     * 一个正在从目标服务器接收、准备写入缓存的响应。Content在转发给浏览器的同时被复制一份，转发成功结束后调用{@link #commit()}写入缓存，
+     * 转发失败则调用{@link #discard()}。
+     * <p>复制的Content先放在堆中，超过内存存储的上限后改为边接收边写入磁盘文件，堆中至多保留maxMemoryObjectSize字节。</p>
+     */
+    public final class Pending {
+        private final String uriKey;
+        private final String[] varyFieldNames;
+        private final String variantKey;
+        private final HttpResponseInfo responseInfo;
+        private final boolean shared;
+        private final long ttl;
+        private byte[] buffer;
+        private long count;
+        private File file;                  //已转入磁盘时不为null
+        private FileChannel fileChannel;
+        private boolean overflow;
+
+        private Pending(String uriKey, String[] varyFieldNames, String variantKey, HttpResponseInfo responseInfo, boolean shared, long ttl, long expectedLength) {
+            this.uriKey = uriKey;
+            this.varyFieldNames = varyFieldNames;
+            this.variantKey = variantKey;
+            this.responseInfo = responseInfo;
+            this.shared = shared;
+            this.ttl = ttl;
+            //已知放不进内存的响应不必预先分配
+            buffer = new byte[expectedLength > memoryObjectLimit() ? 0 : (int) Math.min(Math.max(expectedLength, 1024), memoryObjectLimit())];
+        }
+
+        /**
+         * @return 在写入out的同时复制Content的输出流
+         */
+        public OutputStream wrap(OutputStream out) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    append(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    append(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+
+        //缓存文件的读写错误只影响缓存，不影响转发
+        private void append(byte[] b, int off, int len) {
+            if (overflow) {
+                return;
+            }
+            if (count + len > settings.maxObjectSize || count + len > settings.diskSize && count + len > memoryObjectLimit()) {
+                //超过上限则放弃缓存
+                discard();
+                return;
+            }
+            try {
+                if (fileChannel == null && count + len > memoryObjectLimit()) {
+                    spill();
+                }
+                if (fileChannel != null) {
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(b, off, len);
+                    while (byteBuffer.hasRemaining()) {
+                        fileChannel.write(byteBuffer);
+                    }
+                }
+                else {
+                    if (count + len > buffer.length) {
+                        buffer = Arrays.copyOf(buffer, (int) Math.min(Math.max((long) buffer.length << 1, count + len), memoryObjectLimit()));
+                    }
+                    System.arraycopy(b, off, buffer, (int) count, len);
+                }
+            } catch (IOException e) {
+                Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, name + " 的缓存无法写入磁盘：" + e.getMessage());
+                discard();
+                return;
+            }
+            count += len;
+        }
+
+        //将已复制的Content写入磁盘文件，之后的Content直接写入文件
+        private void spill() throws IOException {
+            directory.mkdirs();
+            file = new File(directory, fileSequence.incrementAndGet() + ".cache");
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, (int) count);
+            while (byteBuffer.hasRemaining()) {
+                fileChannel.write(byteBuffer);
+            }
+            buffer = null;
+        }
+
+        public void commit() {
+            if (overflow) {
+                return;
+            }
+            store(this);
+        }
+
+        /**
+         * 放弃缓存此响应，删除已写入的磁盘文件。可以重复调用。
+         */
+        public void discard() {
+            overflow = true;
+            buffer = null;
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException ignored) {
+                }
+                fileChannel = null;
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 一次发往目标服务器、可被其他并发请求共享的请求。
+     */
+    public final class Flight {
+        private final String uriKey;
+        private final String key;
+        private final CountDownLatch latch;     //为null代表不合并请求，此时总是leader
+        private final boolean leader;
+
+        private Flight(String uriKey, String key, CountDownLatch latch, boolean leader) {
+            this.uriKey = uriKey;
+            this.key = key;
+            this.latch = latch;
+            this.leader = leader;
+        }
+
+        /**
+         * @return 是否需要由调用者自己请求目标服务器。为true时，完成后(不论成败)必须调用{@link #finish()}
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * 等待leader完成，最多等待coalesceTimeoutInMillis毫秒，然后查找leader写入的缓存。
+         * <p>找到新鲜的缓存计为一次合并命中，否则(超时或leader的响应不可缓存)计为一次未命中，调用者需自己请求目标服务器。</p>
+         *
+         * @return 找不到新鲜的缓存则返回null
+         */
+        public Entry awaitEntry(HttpRequestInfo requestInfo) {
+            boolean finished;
+            try {
+                finished = latch.await(settings.coalesceTimeoutInMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                finished = false;
+            }
+            Entry entry = finished ? find(uriKey, requestInfo) : null;
+            if (entry == null || !entry.isFresh()) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            coalescedCount.incrementAndGet();
+            return entry;
+        }
+
+        /**
+         * leader的响应已写入缓存(或确定不会写入)，唤醒所有等待者。可以重复调用。
+         */
+        public void finish() {
+            if (!leader || latch == null || latch.getCount() == 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (flights.get(key) == this) {
+                    flights.remove(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+            latch.countDown();
+        }
+    }
+
+    private final String name;
+    private final Settings.ForwardCache settings;
+    private final String origin;
+    private final File directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final HashMap<String, VaryIndex> varyIndexes = new HashMap<>();
+    private final HashMap<String, Flight> flights = new HashMap<>();
+    private long memoryUsed;
+    private long diskUsed;                  //包括已淘汰但尚未删除的文件
+    private final LinkedHashMap<File, Long> undeletedFiles = new LinkedHashMap<>();
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidatedCount = new AtomicLong();
+    private final AtomicLong storedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private ResponseCache(String name, Settings.ForwardCache settings, String origin) {
+        this.name = name;
+        this.settings = settings;
+        this.origin = origin;
+        directory = new File("cache" + File.separator + name);
+        //上次运行留下的文件已没有索引，直接删除
+        deleteDirectoryFiles();
+        Program.logMain(Log.LOG_INFO, LOG_CATEGORY, "已为 " + name + " 开启转发缓存，内存容量：" + settings.memorySize + "字节，磁盘容量：" + settings.diskSize + "字节");
+    }
+
+    private void deleteDirectoryFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 查找缓存的响应，不论是否新鲜。
+     * <p>能直接使用的新鲜缓存计为一次命中；否则请求会接着{@link #joinFlight}，在那里计为未命中或合并命中。每个请求只计一次。</p>
+     *
+     * @param uriKey 请求的URI(包含参数)
+     * @return 找不到则返回null
+     */
+    //此函数会被多个线程调用
+    public Entry lookup(String uriKey, HttpRequestInfo requestInfo) {
+        Entry entry = find(uriKey, requestInfo);
+        if (entry != null && entry.isFresh() && !requiresRevalidation(requestInfo.headers)) {
+            hitCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    //此函数会被多个线程调用
+    private Entry find(String uriKey, HttpRequestInfo requestInfo) {
+        Entry entry;
+        lock.lock();
+        try {
+            VaryIndex varyIndex = varyIndexes.get(uriKey);
+            entry = varyIndex == null ? null : entries.get(buildVariantKey(uriKey, varyIndex.fieldNames, requestInfo.headers));
+        } finally {
+            lock.unlock();
+        }
+        //带Cookie的请求只能使用声明为public的响应
+        if (entry != null && !entry.shared && !requestInfo.headers.cookies.isEmpty()) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 加入对同一资源的在途请求，若没有则成为leader。
+     * <p>请求以URI及Vary涉及的请求字段区分。尚不知道目标服务器的Vary时，以Accept-Encoding区分，不同编码的响应不会互相等待。</p>
+     * <p>成为leader计为一次未命中，等待者在{@link Flight#awaitEntry}中计数。</p>
+     */
+    //此函数会被多个线程调用
+    public Flight joinFlight(String uriKey, HttpRequestInfo requestInfo) {
+        if (settings.coalesceTimeoutInMillis == 0) {
+            missCount.incrementAndGet();
+            return new Flight(uriKey, uriKey, null, true);
+        }
+        lock.lock();
+        try {
+            VaryIndex varyIndex = varyIndexes.get(uriKey);
+            String key = buildVariantKey(uriKey, varyIndex == null ? DEFAULT_FLIGHT_VARY : varyIndex.fieldNames, requestInfo.headers);
+            Flight flight = flights.get(key);
+            if (flight != null) {
+                return new Flight(uriKey, key, flight.latch, false);
+            }
+            missCount.incrementAndGet();
+            flight = new Flight(uriKey, key, new CountDownLatch(1), true);
+            flights.put(key, flight);
+            return flight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String buildVariantKey(String uriKey, String[] varyFieldNames, HttpHeaders requestHeaders) {
+        if (varyFieldNames.length == 0) {
+            return uriKey;
+        }
+        StringBuilder builder = new StringBuilder(uriKey);
+        for (String fieldName : varyFieldNames) {
+            String value = requestHeaders.getFieldValue(fieldName);
+            builder.append('\n').append(fieldName).append(':').append(value == null ? "" : value);
+        }
+        return builder.toString();
+    }
+
+    //计算响应的缓存时间(毫秒)，返回-1代表不可缓存
+    private long computeTtl(HttpHeaders responseHeaders) {
+        HashMap<String, String> cacheControl = parseCacheControl(responseHeaders.getFieldValue("Cache-Control"));
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) {
+            return -1;
+        }
+        long ttl;
+        if (settings.ttlOverrideInSecond >= 0) {
+            ttl = settings.ttlOverrideInSecond * 1000;
+        }
+        else if (cacheControl.containsKey("no-cache")) {
+            ttl = 0;
+        }
+        else if (cacheControl.containsKey("s-maxage")) {
+            ttl = parseSeconds(cacheControl.get("s-maxage")) * 1000;
+        }
+        else if (cacheControl.containsKey("max-age")) {
+            ttl = parseSeconds(cacheControl.get("max-age")) * 1000;
+        }
+        else if (responseHeaders.containsField("Expires")) {
+            long expires = parseHttpDate(responseHeaders.getFieldValue("Expires"));
+            long date = parseHttpDate(responseHeaders.getFieldValue("Date"));
+            ttl = expires == -1 ? 0 : expires - (date == -1 ? System.currentTimeMillis() : date);
+        }
+        else {
+            ttl = settings.defaultTtlInSecond * 1000;
+        }
+        if (settings.ttlOverrideInSecond < 0) {
+            long age = parseSeconds(Utils.toNonNullString(responseHeaders.getFieldValue("Age")));
+            if (age > 0) {
+                ttl -= age * 1000;
+            }
+        }
+        ttl = Math.max(ttl, 0);
+        //既不新鲜又无法重新验证的响应没有缓存的意义
+        if (ttl == 0 && !responseHeaders.containsField("ETag") && !responseHeaders.containsField("Last-Modified")) {
+            return -1;
+        }
+        return ttl;
+    }
+
+    /**
+     * 判断目标服务器的响应能否缓存，若能，则返回用于在转发的同时收集Content的{@link Pending}。
+     * 需要在转发APP改写响应头之前调用。
+     *
+     * @param delimited 响应的Content是否以Content-Length或ChunkedTransfer界定了结尾
+     * @return 不能缓存则返回null
+     */
+    public Pending prepareStore(String uriKey, HttpRequestInfo requestInfo, HttpResponseInfo responseInfo, HttpContentReceiver contentReceiver, boolean delimited) {
+        if (responseInfo.responseCode != 200 || !delimited || !responseInfo.headers.cookies.isEmpty()) {
+            return null;
+        }
+        long expectedLength = contentReceiver.hasContent() && !contentReceiver.hasSuspendedHeaders() ? contentReceiver.getContentLength() : 0;
+        if (expectedLength > settings.maxObjectSize) {
+            return null;
+        }
+        String vary = responseInfo.headers.getFieldValue("Vary");
+        String[] varyFieldNames;
+        if (vary == null || vary.trim().isEmpty()) {
+            varyFieldNames = new String[0];
+        }
+        else {
+            varyFieldNames = vary.split(",");
+            for (int i = 0; i < varyFieldNames.length; i++) {
+                varyFieldNames[i] = varyFieldNames[i].trim().toLowerCase();
+                if (varyFieldNames[i].equals("*")) {
+                    return null;
+                }
+            }
+        }
+        boolean shared = hasDirective(responseInfo.headers.getFieldValue("Cache-Control"), "public");
+        if (!shared && !requestInfo.headers.cookies.isEmpty()) {
+            return null;
+        }
+        long ttl = computeTtl(responseInfo.headers);
+        if (ttl == -1) {
+            return null;
+        }
+        HttpResponseInfo stored = new HttpResponseInfo(responseInfo.protocolVersion, responseInfo.responseCode, responseInfo.responseDescription);
+        stored.headers.mergeFields(new HttpHeaders(responseInfo.headers));
+        for (String fieldName : HOP_BY_HOP_FIELDS) {
+            stored.headers.removeField(fieldName);
+        }
+        return new Pending(uriKey, varyFieldNames, buildVariantKey(uriKey, varyFieldNames, requestInfo.headers), stored, shared, ttl, expectedLength);
+    }
+
+    //能存放在堆中的最大响应
+    private long memoryObjectLimit() {
+        return Math.min(settings.maxMemoryObjectSize, settings.memorySize);
+    }
+
+    private void store(Pending pending) {
+        long now = System.currentTimeMillis();
+        byte[] body = null;
+        MappedByteBuffer mappedBody = null;
+        File file = pending.file;
+        if (pending.fileChannel == null) {
+            body = pending.buffer.length == pending.count ? pending.buffer : Arrays.copyOf(pending.buffer, (int) pending.count);
+        }
+        else {
+            //Content已在接收时写入磁盘，在锁外映射
+            try (FileChannel fileChannel = pending.fileChannel) {
+                mappedBody = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, pending.count);
+            } catch (IOException e) {
+                Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, name + " 的缓存无法写入磁盘：" + e.getMessage());
+                file.delete();
+                return;
+            }
+        }
+        storedCount.incrementAndGet();
+
+        lock.lock();
+        try {
+            VaryIndex varyIndex = varyIndexes.get(pending.uriKey);
+            if (varyIndex == null || !Arrays.equals(varyIndex.fieldNames, pending.varyFieldNames)) {
+                //Vary字段变化后，原有的变体都已无法命中
+                if (varyIndex != null) {
+                    removeVariantsLocked(pending.uriKey);
+                }
+                varyIndex = new VaryIndex(pending.varyFieldNames);
+                varyIndexes.put(pending.uriKey, varyIndex);
+            }
+            Entry entry = new Entry(
+                    pending.variantKey, varyIndex,
+                    pending.responseInfo.protocolVersion, pending.responseInfo.responseCode, pending.responseInfo.responseDescription, pending.responseInfo.headers,
+                    pending.shared, now, now + pending.ttl, body, mappedBody, file, pending.count
+            );
+            putLocked(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 目标服务器对重新验证返回304后，以304中的字段更新缓存的响应。
+     *
+     * @return 更新后的响应
+     */
+    public Entry refresh(Entry stale, HttpResponseInfo notModified) {
+        revalidatedCount.incrementAndGet();
+        HttpHeaders headers = new HttpHeaders(stale.headers);
+        for (Map.Entry<String, String[]> field : notModified.headers.headers.entrySet()) {
+            switch (field.getKey()) {
+                case "connection":
+                case "keep-alive":
+                case "content-length":
+                case "transfer-encoding":
+                case "content-encoding":
+                    continue;
+            }
+            headers.setFieldValue(field.getValue()[0], field.getValue()[1]);
+        }
+        long ttl = computeTtl(headers);
+        long now = System.currentTimeMillis();
+        Entry refreshed = new Entry(
+                stale.key, stale.varyIndex,
+                stale.protocolVersion, stale.responseCode, stale.responseDescription, headers,
+                stale.shared, now, now + Math.max(ttl, 0), stale.body, stale.mappedBody, stale.file, stale.bodyLength
+        );
+        lock.lock();
+        try {
+            //在重新验证期间可能已被替换或淘汰
+            if (ttl != -1 && entries.get(stale.key) == stale) {
+                entries.put(stale.key, refreshed);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return refreshed;
+    }
+
+    //需持有lock
+    private void putLocked(Entry entry) {
+        retryDeletesLocked();
+        Entry old = entries.put(entry.key, entry);
+        if (old != null) {
+            releaseLocked(old);
+        }
+        else {
+            entry.varyIndex.variants++;
+        }
+        if (entry.body != null) {
+            memoryUsed += entry.bodyLength;
+        }
+        else {
+            diskUsed += entry.bodyLength;
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((memoryUsed > settings.memorySize || diskUsed > settings.diskSize) && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest == entry) {
+                continue;
+            }
+            if (eldest.body != null ? memoryUsed > settings.memorySize : diskUsed > settings.diskSize) {
+                iterator.remove();
+                releaseLocked(eldest);
+                removeVaryIndexIfUnusedLocked(eldest);
+            }
+        }
+    }
+
+    //需持有lock。仅释放存储，不改变变体计数
+    private void releaseLocked(Entry entry) {
+        if (entry.body != null) {
+            memoryUsed -= entry.bodyLength;
+        }
+        else if (entry.file.delete()) {
+            //已映射的内容在被GC回收前仍然可读，正在发送的响应不受影响
+            diskUsed -= entry.bodyLength;
+        }
+        else {
+            //某些系统(如Windows)不允许删除仍被映射的文件，在映射被GC回收前文件继续占用磁盘容量，之后重试删除
+            undeletedFiles.put(entry.file, entry.bodyLength);
+        }
+    }
+
+    //需持有lock
+    private void retryDeletesLocked() {
+        Iterator<Map.Entry<File, Long>> iterator = undeletedFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<File, Long> undeleted = iterator.next();
+            if (undeleted.getKey().delete() || !undeleted.getKey().exists()) {
+                diskUsed -= undeleted.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    //需持有lock
+    private void removeVaryIndexIfUnusedLocked(Entry entry) {
+        if (--entry.varyIndex.variants == 0) {
+            String uriKey = entry.key;
+            int findPos = uriKey.indexOf('\n');
+            if (findPos != -1) {
+                uriKey = uriKey.substring(0, findPos);
+            }
+            if (varyIndexes.get(uriKey) == entry.varyIndex) {
+                varyIndexes.remove(uriKey);
+            }
+        }
+    }
+
+    //需持有lock
+    private void removeVariantsLocked(String uriKey) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.key.equals(uriKey) || entry.key.startsWith(uriKey + "\n")) {
+                iterator.remove();
+                releaseLocked(entry);
+            }
+        }
+        varyIndexes.remove(uriKey);
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            for (Entry entry : entries.values()) {
+                releaseLocked(entry);
+            }
+            entries.clear();
+            varyIndexes.clear();
+            //此实例已被丢弃，不会再重试
+            for (File file : undeletedFiles.keySet()) {
+                file.deleteOnExit();
+            }
+            undeletedFiles.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return [命中次数, 未命中(含过期)次数, 重新验证成功次数, 写入次数, 内存占用字节数, 磁盘占用字节数, 合并命中次数(等到并发请求的响应后直接使用缓存)]
+     */
+    public long[] getStatistics() {
+        lock.lock();
+        try {
+            retryDeletesLocked();
+            return new long[] {hitCount.get(), missCount.get(), revalidatedCount.get(), storedCount.get(), memoryUsed, diskUsed, coalescedCount.get()};
+        } finally {
+            lock.unlock();
+        }
+    }
+}
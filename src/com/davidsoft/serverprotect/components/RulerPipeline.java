@@ -0,0 +1,294 @@
+package com.davidsoft.serverprotect.components;
+
+import com.davidsoft.net.http.HttpContentBytesProvider;
+import com.davidsoft.net.http.HttpContentFileProvider;
+import com.davidsoft.net.http.HttpResponseInfo;
+import com.davidsoft.net.http.HttpResponseSender;
+import com.davidsoft.serverprotect.rulers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * 由一份{@link Settings.RuntimeSettings}编译出的防火墙规则链。
+ * <p>按措施方法选择规则、解析措施、编码内联的响应内容，都只在编译时进行一次。编译结果不可变，由使用同一份配置的所有连接共享，
+ * 建立连接时不再为防火墙创建任何对象。因此规则必须是无状态的。</p>
+ * <p>启用adaptiveRulerOrder后，定期按{@link RulerStatistics}中最近一段时间的统计重新排列规则：单位耗时内拦截的请求越多，越靠前。
+ * 有副作用的规则(频率、限速规则会计数，重定向规则依赖自身的位置)固定在原位，其余规则只在剩下的位置间交换。
+ * 措施为block的规则也固定在原位，且其他规则不会越过它：同时触发多条规则的请求由第一条规则处理，越过它会使本该被封禁的IP只收到一个拒绝的响应。
+ * 排列好的规则链整体替换，已建立的连接继续使用原来的顺序。</p>
+ */
+public final class RulerPipeline {
+
+    private static final String LOG_CATEGORY = "防火墙规则";
+    private static final long MIN_SAMPLES = 1000;     //一段时间内判断次数少于此值的规则，统计不足以比较，暂不调整
+
+    //规则都是无状态的，全局共享同一个实例
+    private static final Ruler FREQUENCY_RULER = new FrequencyRuler();
+    private static final Ruler RATE_LIMIT_RULER = new RateLimitRuler();
+    private static final Ruler FORWARD_RULER = new ForwardRuler();
+    private static final Ruler AGENT_RULER = new AgentRuler();
+    private static final Ruler REDIRECT_RULER = new RedirectRuler();
+    private static final Ruler SIMPLE_TRACE_RULER = new SimpleTraceRuler();
+    private static final Ruler TRACE_RULER = new TraceRuler();
+
+    /**
+     * 预先解析好的动作。内联的内容已编码为字节，可被多个响应同时使用。
+     */
+    static final class PreparedAction {
+        private final HttpContentBytesProvider inlineProvider;
+        private final File file;
+
+        private PreparedAction(Settings.Action action) {
+            if ("shutdown".equals(action.actionType)) {
+                inlineProvider = null;
+                file = null;
+            }
+            else if ("file".equals(action.actionContent.type)) {
+                inlineProvider = null;
+                file = new File(action.actionContent.content);
+            }
+            else {
+                inlineProvider = new HttpContentBytesProvider(action.actionContent.content.getBytes(StandardCharsets.UTF_8), action.actionContent.mime, StandardCharsets.UTF_8);
+                file = null;
+            }
+        }
+
+        /**
+         * @return 为null代表直接断开连接
+         */
+        HttpResponseSender newSender() {
+            if (inlineProvider != null) {
+                return new HttpResponseSender(new HttpResponseInfo(200), inlineProvider);
+            }
+            if (file == null) {
+                return null;
+            }
+            //文件内容可能随时被修改，每次重新打开
+            HttpContentFileProvider provider;
+            try {
+                provider = new HttpContentFileProvider(file, null);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new HttpResponseSender(new HttpResponseInfo(500), null);
+            }
+            return new HttpResponseSender(new HttpResponseInfo(200), provider);
+        }
+    }
+
+    /**
+     * 预先解析好的措施。
+     */
+    static final class PreparedPrecaution {
+        final String method;
+        final long blockLengthInMinute;
+        private final PreparedAction action;      //仅当method为action时有效
+        private final PreparedAction xhrAction;
+
+        private PreparedPrecaution(Settings.Precaution precaution) {
+            method = precaution.method;
+            blockLengthInMinute = precaution.blockLengthInMinute;
+            if ("action".equals(precaution.method)) {
+                action = new PreparedAction(precaution.action);
+                xhrAction = precaution.xhrAction == precaution.action ? action : new PreparedAction(precaution.xhrAction);
+            }
+            else {
+                action = null;
+                xhrAction = null;
+            }
+        }
+
+        /**
+         * 执行措施中的动作，仅当method为action时可用。
+         *
+         * @return 为null代表直接断开连接
+         */
+        HttpResponseSender doAction(boolean xhr) {
+            return (xhr ? xhrAction : action).newSender();
+        }
+    }
+
+    /**
+     * 一条规则及其被触发后的处理方式。
+     */
+    static final class Node {
+        final String name;
+        final Ruler ruler;
+        final boolean block;
+        final PreparedPrecaution precaution;    //为null代表返回responseCode
+        final int responseCode;
+        final boolean pinned;                   //有副作用，不参与调整顺序
+        final RulerStatistics statistics;
+
+        private Node(String name, Ruler ruler, boolean pinned, boolean block, PreparedPrecaution precaution, int responseCode) {
+            this.name = name;
+            this.pinned = pinned;
+            this.ruler = ruler;
+            this.block = block;
+            this.precaution = precaution;
+            this.responseCode = responseCode;
+            this.statistics = RulerStatistics.of(name);
+        }
+    }
+
+    private static Timer timer;
+
+    volatile Node[] nodes;
+    final PreparedPrecaution illegalData;   //非规则的检查(数据、方法、Host字段)被触发后共用此措施
+    private final Node[] compiledNodes;     //编译时的顺序
+    private final long[][] baselines;       //上次调整时各规则的统计，与compiledNodes对应，只在定时任务中使用
+
+    private RulerPipeline(Node[] nodes, PreparedPrecaution illegalData) {
+        this.nodes = nodes;
+        this.illegalData = illegalData;
+        compiledNodes = nodes;
+        baselines = new long[nodes.length][];
+        for (int i = 0; i < nodes.length; i++) {
+            baselines[i] = nodes[i].statistics.getStatistics();
+        }
+    }
+
+    static void startUp() {
+        Settings.StaticSettings staticSettings = Settings.getStaticSettings();
+        if (!staticSettings.adaptiveRulerOrder) {
+            return;
+        }
+        long interval = Math.max(staticSettings.rulerReorderIntervalInSecond, 1) * 1000L;
+        timer = new Timer("RulerPipeline", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Settings.getRuntimeSettings().rulerPipeline.reorder();
+            }
+        }, interval, interval);
+        Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已启用防火墙规则顺序的自动调整。");
+    }
+
+    public static void shutDown() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    /**
+     * 按上次调整以来的统计重新排列可移动的规则。
+     * <p>规则未通过的概率p与平均耗时c之比p/c即为单位耗时内拦截的请求数，按此值从大到小排列，相同时保持编译时的顺序。
+     * 措施为block的规则把规则链分为若干段，规则只在所在的段内移动。</p>
+     */
+    //此函数可能会被其他线程调用
+    private void reorder() {
+        int count = compiledNodes.length;
+        long[][] current = new long[count][];
+        double[] ranks = new double[count];
+        int[] segments = new int[count];
+        int[] movable = new int[count];
+        int movableCount = 0;
+        int segment = 0;
+        for (int i = 0; i < count; i++) {
+            current[i] = compiledNodes[i].statistics.getStatistics();
+            if (compiledNodes[i].block) {
+                segment++;
+                continue;
+            }
+            if (compiledNodes[i].pinned) {
+                continue;
+            }
+            segments[i] = segment;
+            long evaluations = current[i][0] - baselines[i][0];
+            if (evaluations < MIN_SAMPLES) {
+                //统计不足，继续累积
+                return;
+            }
+            //p/c = (未通过次数/判断次数)/(总耗时/判断次数) = 未通过次数/总耗时
+            ranks[i] = (double) (current[i][1] - baselines[i][1]) / Math.max(current[i][2] - baselines[i][2], 1);
+            movable[movableCount++] = i;
+        }
+        System.arraycopy(current, 0, baselines, 0, count);
+        if (movableCount < 2) {
+            return;
+        }
+        //规则很少，插入排序即可，且是稳定的。movable按段的顺序排列，遇到前一段的规则即停止
+        int[] sorted = Arrays.copyOf(movable, movableCount);
+        for (int i = 1; i < movableCount; i++) {
+            int index = sorted[i];
+            int j = i - 1;
+            while (j >= 0 && segments[sorted[j]] == segments[index] && ranks[sorted[j]] < ranks[index]) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = index;
+        }
+        Node[] reordered = compiledNodes.clone();
+        for (int i = 0; i < movableCount; i++) {
+            reordered[movable[i]] = compiledNodes[sorted[i]];
+        }
+        if (Arrays.equals(reordered, nodes)) {
+            return;
+        }
+        nodes = reordered;
+        StringBuilder order = new StringBuilder();
+        for (Node node : reordered) {
+            if (order.length() > 0) {
+                order.append(", ");
+            }
+            order.append(node.name);
+        }
+        Program.logMain(Log.LOG_INFO, LOG_CATEGORY, "已调整规则的顺序：" + order);
+    }
+
+    static RulerPipeline compile(Settings.Protections protections) {
+        ArrayList<Node> builder = new ArrayList<>(6);
+        PreparedPrecaution precaution = new PreparedPrecaution(protections.precautionForIllegalFrequency);
+        switch (precaution.method) {
+            case "block":
+            case "action":
+                builder.add(new Node("illegalFrequency", FREQUENCY_RULER, true, "block".equals(precaution.method), precaution, 0));
+                break;
+        }
+        precaution = new PreparedPrecaution(protections.precautionForIllegalRateLimit);
+        switch (precaution.method) {
+            case "block":
+            case "action":
+                builder.add(new Node("illegalRateLimit", RATE_LIMIT_RULER, true, "block".equals(precaution.method), precaution, 0));
+                break;
+        }
+        precaution = new PreparedPrecaution(protections.precautionForIllegalForward);
+        switch (precaution.method) {
+            case "block":
+            case "action":
+                builder.add(new Node("illegalForward", FORWARD_RULER, false, "block".equals(precaution.method), precaution, 0));
+                break;
+        }
+        precaution = new PreparedPrecaution(protections.precautionForIllegalAgent);
+        switch (precaution.method) {
+            case "block":
+            case "action":
+                builder.add(new Node("illegalAgent", AGENT_RULER, false, "block".equals(precaution.method), precaution, 0));
+                break;
+            default:
+                builder.add(new Node("illegalAgent", AGENT_RULER, false, false, null, 412));
+                break;
+        }
+        precaution = new PreparedPrecaution(protections.precautionForIllegalRedirect);
+        switch (precaution.method) {
+            case "block":
+            case "action":
+                builder.add(new Node("illegalRedirect", REDIRECT_RULER, true, "block".equals(precaution.method), precaution, 0));
+                break;
+        }
+        precaution = new PreparedPrecaution(protections.precautionForIllegalTrace);
+        switch (precaution.method) {
+            case "block":
+            case "action":
+                //路径图中没有边时，只需检查url是否在列表中
+                builder.add(new Node("illegalTrace", protections.traceGraph.hasEdges() ? TRACE_RULER : SIMPLE_TRACE_RULER, false, "block".equals(precaution.method), precaution, 0));
+                break;
+        }
+        return new RulerPipeline(builder.toArray(new Node[0]), new PreparedPrecaution(protections.precautionForIllegalData));
+    }
+}
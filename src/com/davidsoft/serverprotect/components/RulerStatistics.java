@@ -0,0 +1,186 @@
+package com.davidsoft.serverprotect.components;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每条防火墙规则的执行统计：判断次数、未通过次数、封禁次数，以及判断耗时的分布。
+ * <p>计数都用{@link LongAdder}，多个线程同时累加时各自写入不同的单元，不争用同一个变量。耗时按对数分桶(HDR直方图的做法)：
+ * 每个2的幂区间再均分为{@value #SUB_BUCKET_COUNT}格，相对误差不超过1/{@value #SUB_BUCKET_COUNT}，记录一次只需一次位运算和一次累加。</p>
+ * <p>统计按规则名称保存，不随配置的更新而清零。</p>
+ */
+public final class RulerStatistics {
+
+    static final String LOG_CATEGORY = "防火墙规则统计";
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 37;                         //耗时超过2^37纳秒(约137秒)的按2^37纳秒记录
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private static final ConcurrentHashMap<String, RulerStatistics> statistics = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder blocks = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+    private RulerStatistics(String name) {
+        this.name = name;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return 名为name的规则的统计，不存在则创建
+     */
+    static RulerStatistics of(String name) {
+        return statistics.computeIfAbsent(name, RulerStatistics::new);
+    }
+
+    //小于2*SUB_BUCKET_COUNT的值每个值一格，更大的值按最高位所在的区间及其后SUB_BUCKET_BITS位定位
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKET_COUNT << 1) {
+            return (int) Math.max(nanos, 0);
+        }
+        if (nanos > MAX_VALUE) {
+            nanos = MAX_VALUE;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((nanos >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    //第index格所代表的最大值
+    private static long highestOf(int index) {
+        if (index < SUB_BUCKET_COUNT << 1) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long sub = SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1));
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * 记录一次判断。
+     */
+    //此函数会被多个线程调用
+    void record(long nanos, boolean passed) {
+        evaluations.increment();
+        if (!passed) {
+            rejections.increment();
+        }
+        totalNanos.add(nanos);
+        buckets[bucketOf(nanos)].increment();
+    }
+
+    /**
+     * @return [判断次数, 未通过次数, 总耗时(纳秒)]
+     */
+    long[] getStatistics() {
+        return new long[] {evaluations.sum(), rejections.sum(), totalNanos.sum()};
+    }
+
+    /**
+     * 记录一次因此规则而封禁IP。
+     */
+    //此函数会被多个线程调用
+    void recordBlock() {
+        blocks.increment();
+    }
+
+    /**
+     * 某一时刻的统计。各项分别读取，在并发累加时彼此之间可能略有出入。
+     */
+    public static final class Snapshot {
+        public final String name;
+        public final long evaluations;
+        public final long rejections;
+        public final long blocks;
+        public final long totalNanos;
+        private final long[] counts;
+        private final long count;
+
+        private Snapshot(RulerStatistics statistics) {
+            name = statistics.name;
+            evaluations = statistics.evaluations.sum();
+            rejections = statistics.rejections.sum();
+            blocks = statistics.blocks.sum();
+            totalNanos = statistics.totalNanos.sum();
+            counts = new long[BUCKET_COUNT];
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = statistics.buckets[i].sum();
+                count += counts[i];
+            }
+            this.count = count;
+        }
+
+        /**
+         * @return 平均耗时(纳秒)，尚无任何判断时返回0
+         */
+        public double getMeanNanos() {
+            return evaluations == 0 ? 0 : (double) totalNanos / evaluations;
+        }
+
+        /**
+         * @param percentile 0~100
+         * @return 不少于percentile%的判断的耗时都不超过此值(纳秒)，尚无任何判断时返回0
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100), 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestOf(i);
+                }
+            }
+            return highestOf(BUCKET_COUNT - 1);
+        }
+
+        /**
+         * @return 最长耗时所在格的上限(纳秒)，尚无任何判断时返回0
+         */
+        public long getMaxNanos() {
+            for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestOf(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": 判断 " + evaluations + " 次，未通过 " + rejections + " 次，封禁 " + blocks + " 次，耗时(纳秒) 平均 " + Math.round(getMeanNanos())
+                    + " P50 " + getPercentileNanos(50) + " P99 " + getPercentileNanos(99) + " P99.9 " + getPercentileNanos(99.9) + " 最大 " + getMaxNanos();
+        }
+    }
+
+    /**
+     * @return 所有规则当前的统计
+     */
+    public static Snapshot[] snapshot() {
+        ArrayList<Snapshot> snapshots = new ArrayList<>(statistics.size());
+        for (RulerStatistics s : statistics.values()) {
+            snapshots.add(new Snapshot(s));
+        }
+        return snapshots.toArray(new Snapshot[0]);
+    }
+
+    /**
+     * @return 名为name的规则当前的统计，该规则从未启用过则返回null
+     */
+    public static Snapshot snapshot(String name) {
+        RulerStatistics s = statistics.get(name);
+        return s == null ? null : new Snapshot(s);
+    }
+}
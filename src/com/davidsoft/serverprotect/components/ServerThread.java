@@ -3,6 +3,8 @@ package com.davidsoft.serverprotect.components;
 import com.davidsoft.serverprotect.Utils;
 
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
@@ -12,7 +14,7 @@ public class ServerThread extends Thread {
     public final boolean ssl;
     private final ServerSocket serverSocket;
 
-    private boolean flag;
+    protected volatile boolean flag;
 
     public ServerThread(int port, boolean ssl, ServerSocket serverSocket) {
         this.port = port;
@@ -34,6 +36,10 @@ public class ServerThread extends Thread {
             } catch (IOException e) {
                 return;
             }
+            //封禁的IP在此直接拒绝，不创建ClientConnection，也不占用连接池
+            if (rejectIfBlocked(socket)) {
+                continue;
+            }
             //创建线程，从连接池申请permit
             try {
                 ConnectionPool.active(new ClientConnection(socket, port, ssl));
@@ -44,6 +50,37 @@ public class ServerThread extends Thread {
         }
     }
 
+    /**
+     * 若连接来自封禁的IP，则按配置写出响应或直接断开连接。
+     * <p>只读取远端地址的字节查询黑名单，不解析字符串，也不加锁，适合在接受连接的线程中调用。</p>
+     *
+     * @return 连接是否已被拒绝
+     */
+    protected boolean rejectIfBlocked(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        if (!(address instanceof Inet4Address)) {
+            return false;
+        }
+        byte[] bytes = address.getAddress();
+        int ip = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        if (!BlackListManager.inBlackList(ip)) {
+            return false;
+        }
+        //https连接需要先握手才能发送响应，握手可能阻塞，因此直接断开
+        byte[] response = ssl ? null : ClientConnection.getBlockResponse();
+        try {
+            if (response != null) {
+                //响应很短，新连接的发送缓冲区必然容纳得下，不会阻塞
+                socket.getOutputStream().write(response);
+            }
+            else if (Settings.getStaticSettings().resetBlockedConnections) {
+                socket.setSoLinger(true, 0);
+            }
+        } catch (IOException ignored) {}
+        Utils.closeWithoutException(socket, true);
+        return true;
+    }
+
     public void shutDown() {
         if (!flag) {
             return;
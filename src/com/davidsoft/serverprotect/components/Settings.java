@@ -2,6 +2,7 @@ package com.davidsoft.serverprotect.components;
 
 import com.davidsoft.collections.ReadOnlyMap;
 import com.davidsoft.net.*;
+import com.davidsoft.net.http.HttpCompressionPolicy;
 import com.davidsoft.serverprotect.Utils;
 import com.davidsoft.serverprotect.enties.*;
 import com.davidsoft.url.URI;
@@ -11,8 +12,11 @@ import com.davidsoft.utils.JsonNode;
 import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public final class Settings {
@@ -33,17 +37,131 @@ public final class Settings {
         public final boolean keepConnections;
         public final int maxPathLength;
         public final int maxHeaderSize;
-
-        private StaticSettings(int maxConnections, int maxServices, boolean keepConnections, int maxPathLength, int maxHeaderSize) {
+        public final boolean reactorMode;
+        public final boolean virtualThreads;
+        public final long staticCacheSize;
+        public final long staticCacheMaxFileSize;
+        public final HttpCompressionPolicy compressionPolicy;
+        public final int upstreamMaxConnectionsPerHost;
+        public final int upstreamIdleTimeoutInSecond;
+        public final int upstreamAcquireTimeoutInSecond;
+        public final String blackListFsyncPolicy;              //always: 每批记录写入后刷盘; interval: 至多每隔blackListFsyncIntervalInMillis刷盘; never: 由操作系统决定
+        public final long blackListFsyncIntervalInMillis;
+        public final long blackListCompactThreshold;           //黑名单文件中的记录数超过此值时压缩
+        public final boolean resetBlockedConnections;          //在接受连接时拒绝封禁的IP时，以RST断开连接(SO_LINGER=0)
+        public final String traceMode;                         //server: 在服务器端保存访问路径; token: 以签名的令牌保存在cookie中
+        public final String traceTokenSecret;                  //为空代表使用随机密钥
+        public final long traceTokenKeyRotationInSecond;
+        public final boolean adaptiveRulerOrder;               //按统计定期调整防火墙规则的顺序
+        public final int rulerReorderIntervalInSecond;
+        public final int readTimeoutInSecond;                  //reactor模式下，接收请求头的最长时间
+        public final int keepAliveTimeoutInSecond;             //reactor模式下，复用的连接的最长空闲时间
+
+        private StaticSettings(int maxConnections, int maxServices, boolean keepConnections, int maxPathLength, int maxHeaderSize, boolean reactorMode, boolean virtualThreads, long staticCacheSize, long staticCacheMaxFileSize, HttpCompressionPolicy compressionPolicy, int upstreamMaxConnectionsPerHost, int upstreamIdleTimeoutInSecond, int upstreamAcquireTimeoutInSecond, String blackListFsyncPolicy, long blackListFsyncIntervalInMillis, long blackListCompactThreshold, boolean resetBlockedConnections, String traceMode, String traceTokenSecret, long traceTokenKeyRotationInSecond, boolean adaptiveRulerOrder, int rulerReorderIntervalInSecond, int readTimeoutInSecond, int keepAliveTimeoutInSecond) {
             this.maxConnections = maxConnections;
             this.maxServices = maxServices;
             this.keepConnections = keepConnections;
             this.maxPathLength = maxPathLength;
             this.maxHeaderSize = maxHeaderSize;
+            this.reactorMode = reactorMode;
+            this.virtualThreads = virtualThreads;
+            this.staticCacheSize = staticCacheSize;
+            this.staticCacheMaxFileSize = staticCacheMaxFileSize;
+            this.compressionPolicy = compressionPolicy;
+            this.upstreamMaxConnectionsPerHost = upstreamMaxConnectionsPerHost;
+            this.upstreamIdleTimeoutInSecond = upstreamIdleTimeoutInSecond;
+            this.upstreamAcquireTimeoutInSecond = upstreamAcquireTimeoutInSecond;
+            this.blackListFsyncPolicy = blackListFsyncPolicy;
+            this.blackListFsyncIntervalInMillis = blackListFsyncIntervalInMillis;
+            this.blackListCompactThreshold = blackListCompactThreshold;
+            this.resetBlockedConnections = resetBlockedConnections;
+            this.traceMode = traceMode;
+            this.traceTokenSecret = traceTokenSecret;
+            this.traceTokenKeyRotationInSecond = traceTokenKeyRotationInSecond;
+            this.adaptiveRulerOrder = adaptiveRulerOrder;
+            this.rulerReorderIntervalInSecond = rulerReorderIntervalInSecond;
+            this.readTimeoutInSecond = readTimeoutInSecond;
+            this.keepAliveTimeoutInSecond = keepAliveTimeoutInSecond;
         }
 
         private static StaticSettings fromServerNode(ServerNode serverNode) {
-            return new StaticSettings(serverNode.maxConnections, serverNode.maxServices, serverNode.keepConnections, serverNode.maxPathLength, serverNode.maxHeaderSize);
+            return new StaticSettings(serverNode.maxConnections, serverNode.maxServices, serverNode.keepConnections, serverNode.maxPathLength, serverNode.maxHeaderSize, serverNode.reactorMode, serverNode.virtualThreads, serverNode.staticCacheSize, serverNode.staticCacheMaxFileSize,
+                    new HttpCompressionPolicy(
+                            serverNode.compressionMinSize,
+                            serverNode.compressionStreamThreshold,
+                            serverNode.compressibleMimeTypes == null ? null : Arrays.asList(serverNode.compressibleMimeTypes)
+                    ),
+                    serverNode.upstreamMaxConnectionsPerHost, serverNode.upstreamIdleTimeoutInSecond, serverNode.upstreamAcquireTimeoutInSecond,
+                    serverNode.blackListFsyncPolicy, serverNode.blackListFsyncIntervalInMillis, serverNode.blackListCompactThreshold,
+                    serverNode.resetBlockedConnections, serverNode.traceMode, serverNode.traceTokenSecret, serverNode.traceTokenKeyRotationInSecond, serverNode.adaptiveRulerOrder, serverNode.rulerReorderIntervalInSecond, serverNode.readTimeoutInSecond, serverNode.keepAliveTimeoutInSecond
+            );
+        }
+    }
+
+    public static final class ForwardCache {
+        public final long memorySize;
+        public final long diskSize;
+        public final long maxMemoryObjectSize;
+        public final long maxObjectSize;
+        public final long ttlOverrideInSecond;     //<0代表遵循目标服务器给出的缓存时间
+        public final long defaultTtlInSecond;      //目标服务器未给出缓存时间时使用
+        public final long coalesceTimeoutInMillis; //等待同一资源的并发请求完成的最长时间，0代表不合并请求
+
+        private ForwardCache(long memorySize, long diskSize, long maxMemoryObjectSize, long maxObjectSize, long ttlOverrideInSecond, long defaultTtlInSecond, long coalesceTimeoutInMillis) {
+            this.memorySize = memorySize;
+            this.diskSize = diskSize;
+            this.maxMemoryObjectSize = maxMemoryObjectSize;
+            this.maxObjectSize = maxObjectSize;
+            this.ttlOverrideInSecond = ttlOverrideInSecond;
+            this.defaultTtlInSecond = defaultTtlInSecond;
+            this.coalesceTimeoutInMillis = coalesceTimeoutInMillis;
+        }
+
+        //未开启时返回null
+        private static ForwardCache fromForwardCacheNode(ForwardCacheNode cacheNode) throws ApplyException {
+            if (cacheNode == null || !cacheNode.enabled) {
+                return null;
+            }
+            if (cacheNode.memorySize < 0 || cacheNode.diskSize < 0) {
+                throw new ApplyException("apps.target.cache", "缓存容量不能为负数");
+            }
+            if (cacheNode.maxObjectSize > Integer.MAX_VALUE - 8) {
+                throw new ApplyException("apps.target.cache.maxObjectSize", "单个缓存对象不能超过2GiB");
+            }
+            if (cacheNode.defaultTtlInSecond < 0) {
+                throw new ApplyException("apps.target.cache.defaultTtlInSecond", "默认缓存时间不能为负数");
+            }
+            if (cacheNode.coalesceTimeoutInMillis < 0) {
+                throw new ApplyException("apps.target.cache.coalesceTimeoutInMillis", "合并请求的等待时间不能为负数");
+            }
+            return new ForwardCache(
+                    cacheNode.memorySize,
+                    cacheNode.diskSize,
+                    Math.min(cacheNode.maxMemoryObjectSize, cacheNode.maxObjectSize),
+                    cacheNode.maxObjectSize,
+                    cacheNode.ttlOverrideInSecond,
+                    cacheNode.defaultTtlInSecond,
+                    cacheNode.coalesceTimeoutInMillis
+            );
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ForwardCache)) {
+                return false;
+            }
+            ForwardCache that = (ForwardCache) o;
+            return memorySize == that.memorySize && diskSize == that.diskSize && maxMemoryObjectSize == that.maxMemoryObjectSize
+                    && maxObjectSize == that.maxObjectSize && ttlOverrideInSecond == that.ttlOverrideInSecond && defaultTtlInSecond == that.defaultTtlInSecond
+                    && coalesceTimeoutInMillis == that.coalesceTimeoutInMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(memorySize) * 31 + Long.hashCode(diskSize);
         }
     }
 
@@ -57,8 +175,9 @@ public final class Settings {
         public final int targetPort;
         public final boolean targetSSL;
         public final boolean forwardIp;
+        public final ForwardCache forwardCache;    //为null代表不缓存
 
-        private WebApplication(String name, String type, RegexIpIndex<Void> whiteList, DomainIndex<Object> allowDomains, ReadOnlyMap<Integer, URI> routers, String targetDomain, int targetPort, boolean targetSSL, boolean forwardIp) {
+        private WebApplication(String name, String type, RegexIpIndex<Void> whiteList, DomainIndex<Object> allowDomains, ReadOnlyMap<Integer, URI> routers, String targetDomain, int targetPort, boolean targetSSL, boolean forwardIp, ForwardCache forwardCache) {
             this.name = name;
             this.type = type;
             this.whiteList = whiteList;
@@ -68,6 +187,7 @@ public final class Settings {
             this.targetPort = targetPort;
             this.targetSSL = targetSSL;
             this.forwardIp = forwardIp;
+            this.forwardCache = forwardCache;
         }
 
         private static WebApplication fromAppNode(AppNode appNode) throws ApplyException {
@@ -128,7 +248,7 @@ public final class Settings {
                         whiteList,
                         allowDomains,
                         new ReadOnlyMap<>(routers),
-                        null, 0, false, false
+                        null, 0, false, false, null
                 );
             }
             else {
@@ -138,7 +258,8 @@ public final class Settings {
                         whiteList,
                         allowDomains,
                         new ReadOnlyMap<>(routers),
-                        appNode.target.domain, appNode.target.port, appNode.target.ssl, appNode.target.forwardIp
+                        appNode.target.domain, appNode.target.port, appNode.target.ssl, appNode.target.forwardIp,
+                        "forward".equals(appNode.type) ? ForwardCache.fromForwardCacheNode(appNode.target.cache) : null
                 );
             }
         }
@@ -318,6 +439,217 @@ public final class Settings {
         }
     }
 
+    /**
+     * 按URI前缀限制单个IP请求速率的策略，以GCRA算法实现：平均每秒最多ratePerSecond个请求，允许一次性连续发出burst个请求。
+     */
+    public static final class RateLimit {
+        private static final AtomicInteger idGenerator = new AtomicInteger();
+        //策略标识(应用、url、速率、突发数)到id的映射，重新加载设置时未改动的策略沿用原id，其状态不会被重置
+        private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+        public final int id;                    //区分不同策略的状态，标识相同的策略id相同
+        public final double ratePerSecond;
+        public final int burst;
+        public final long emissionInterval;     //相邻两个请求的理论间隔(纳秒)
+        public final long tolerance;            //允许提前到达的最长时间(纳秒)
+        private final boolean prefix;           //为true时匹配以url开头的所有URI，否则只匹配url本身
+
+        private RateLimit(String app, String url, double ratePerSecond, int burst, boolean prefix) {
+            this.id = ids.computeIfAbsent(app + "\n" + url + "\n" + ratePerSecond + "\n" + burst, k -> idGenerator.incrementAndGet());
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+            this.emissionInterval = (long) (1000000000 / ratePerSecond);
+            this.tolerance = emissionInterval * (burst - 1);
+            this.prefix = prefix;
+        }
+
+        private static void putRateLimitNode(RateLimitNode rateLimitNode, HashMap<String, URIIndex<RateLimit>> index) throws ApplyException {
+            if (rateLimitNode.url == null) {
+                throw new ApplyException("rateLimits.url", "未指定url");
+            }
+            if (!(rateLimitNode.ratePerSecond > 0)) {
+                throw new ApplyException("rateLimits.ratePerSecond", "速率必须大于0");
+            }
+            if (rateLimitNode.burst < 1) {
+                throw new ApplyException("rateLimits.burst", "突发请求数至少为1");
+            }
+            boolean prefix = rateLimitNode.url.endsWith("/*");
+            URI uri;
+            try {
+                uri = NetURI.parse(prefix ? rateLimitNode.url.substring(0, rateLimitNode.url.length() - 1) : rateLimitNode.url);
+            } catch (ParseException e) {
+                throw new ApplyException("rateLimits.url", "发现无效url", e);
+            }
+            String app = Utils.toNonNullString(rateLimitNode.app);
+            index.computeIfAbsent(app, k -> new URIIndex<>()).put(uri, new RateLimit(app, rateLimitNode.url, rateLimitNode.ratePerSecond, rateLimitNode.burst, prefix));
+        }
+
+        private static RateLimit match(URIIndex<RateLimit> index, URI uri) {
+            if (index == null) {
+                return null;
+            }
+            URIIndex.QueryResult<RateLimit> queryResult = index.get(uri);
+            if (queryResult != null && queryResult.matchedExactly) {
+                return queryResult.data;
+            }
+            //最深的匹配只匹配其自身时，逐级退回到外层目录，直到找到前缀策略
+            while (queryResult != null && !queryResult.data.prefix) {
+                URI matchedURI = queryResult.matchedURI;
+                if (matchedURI.patternCount() == 0) {
+                    return null;
+                }
+                queryResult = index.get(matchedURI.subLocation(0, matchedURI.patternCount() - 1));
+            }
+            return queryResult == null ? null : queryResult.data;
+        }
+    }
+
+    /**
+     * 由路径图编译出的状态转移表。
+     * <p>编译时把图中的节点依次编号为0~n-1，访客的状态是一个整数：0代表尚未进入图中，i+1代表最后访问的是节点i。
+     * 转移表是一个(n+1)*n的扁平数组，以“状态*n+节点编号”为下标，值为访问该节点后的新状态，-1代表不允许访问，因此每个请求只需查一次表。</p>
+     * <p>允许的访问：沿图中的边前进；停留在当前节点；随时访问没有入边的节点(入口)；没有任何边相连的节点(如静态资源)总是允许访问，且不改变状态。
+     * 图中没有边时只需检查url是否在列表中，不编译转移表，节点数与节点ID也不受上述限制。</p>
+     */
+    public static final class TraceGraph {
+        public static final int MAX_NODE_COUNT = 1024;
+        private static final AtomicInteger stampCounter = new AtomicInteger();
+
+        //url对应的节点
+        private static final class Target {
+            private final int index;
+            private final boolean prefix;
+
+            private Target(int index, boolean prefix) {
+                this.index = index;
+                this.prefix = prefix;
+            }
+        }
+
+        private final URIIndex<Target> targets;
+        private final short[] transitions;
+        private final boolean[] free;           //没有任何边相连的节点
+        private final int nodeCount;
+        private final int edgeCount;
+        private final int stamp;                //区分不同配置编译出的表，配置更新后，按旧表保存的状态不再有效
+
+        private TraceGraph(PathsNode pathsNode) throws ApplyException {
+            PathsUrlNode[] urls = pathsNode.urls == null ? new PathsUrlNode[0] : pathsNode.urls;
+            int[][] topology = pathsNode.topology == null ? new int[0][] : pathsNode.topology;
+            edgeCount = topology.length;
+            if (edgeCount == 0) {
+                //没有边时使用的是SimpleTraceRuler，用不到转移表，也就不必编译与校验
+                targets = new URIIndex<>();
+                nodeCount = 0;
+                free = new boolean[0];
+                transitions = new short[0];
+            }
+            else {
+                if (urls.length > MAX_NODE_COUNT) {
+                    throw new ApplyException("paths.urls", "节点数不能超过" + MAX_NODE_COUNT);
+                }
+                nodeCount = urls.length;
+                //将节点ID编号为连续的整数
+                HashMap<Integer, Integer> indexes = new HashMap<>();
+                targets = new URIIndex<>();
+                for (int i = 0; i < nodeCount; i++) {
+                    if (indexes.put(urls[i].id, i) != null) {
+                        throw new ApplyException("paths.urls.id", "发现重复的节点ID");
+                    }
+                    boolean prefix = urls[i].url.endsWith("/*");
+                    try {
+                        targets.put(NetURI.parse(prefix ? urls[i].url.substring(0, urls[i].url.length() - 1) : urls[i].url), new Target(i, prefix));
+                    } catch (ParseException e) {
+                        throw new ApplyException("paths.urls.url", "发现无效url", e);
+                    }
+                }
+                boolean[] hasIn = new boolean[nodeCount];
+                boolean[] hasOut = new boolean[nodeCount];
+                boolean[][] edges = new boolean[nodeCount][nodeCount];
+                for (int[] edge : topology) {
+                    Integer src = edge.length == 2 ? indexes.get(edge[0]) : null;
+                    Integer dst = edge.length == 2 ? indexes.get(edge[1]) : null;
+                    if (src == null || dst == null) {
+                        throw new ApplyException("paths.topology", "发现无效的节点ID");
+                    }
+                    edges[src][dst] = true;
+                    hasOut[src] = true;
+                    hasIn[dst] = true;
+                }
+                free = new boolean[nodeCount];
+                transitions = new short[(nodeCount + 1) * nodeCount];
+                for (int state = 0; state <= nodeCount; state++) {
+                    int from = state - 1;
+                    for (int to = 0; to < nodeCount; to++) {
+                        short next;
+                        if (!hasIn[to] && !hasOut[to]) {
+                            free[to] = true;
+                            next = (short) state;
+                        }
+                        else if (!hasIn[to] || to == from || (from >= 0 && edges[from][to])) {
+                            next = (short) (to + 1);
+                        }
+                        else {
+                            next = -1;
+                        }
+                        transitions[state * nodeCount + to] = next;
+                    }
+                }
+            }
+            int stamp;
+            do {
+                stamp = stampCounter.incrementAndGet() & 0x7FFF;
+            } while (stamp == 0);
+            this.stamp = stamp;
+        }
+
+        /**
+         * @return 请求的uri对应的节点编号，不在图中则返回-1
+         */
+        public int resolve(URI uri) {
+            URIIndex.QueryResult<Target> queryResult = targets.get(uri);
+            if (queryResult == null || !(queryResult.matchedExactly || queryResult.data.prefix)) {
+                return -1;
+            }
+            return queryResult.data.index;
+        }
+
+        /**
+         * @return 处于state状态时访问target节点后的新状态，-1代表不允许访问
+         */
+        public int next(int state, int target) {
+            return transitions[state * nodeCount + target];
+        }
+
+        /**
+         * @return target节点是否没有任何边相连
+         */
+        public boolean isFree(int target) {
+            return free[target];
+        }
+
+        /**
+         * @return 图中是否有边，没有边时只需检查url是否在列表中
+         */
+        public boolean hasEdges() {
+            return edgeCount > 0;
+        }
+
+        /**
+         * 将状态编码为可保存的整数，附带本表的标记。
+         */
+        public int save(int state) {
+            return stamp << 16 | state;
+        }
+
+        /**
+         * 解码{@link #save(int)}保存的整数，由其他配置保存的状态视为尚未进入图中。
+         */
+        public int restore(int saved) {
+            return saved >>> 16 == stamp ? saved & 0xFFFF : 0;
+        }
+    }
+
     public static final class Protections {
         public final long frequencyDetectIntervalInSecond;
         public final int frequencyDetectTimes;
@@ -327,10 +659,12 @@ public final class Settings {
         public final Precaution precautionForIllegalForward;
         public final Precaution precautionForIllegalFrequency;
         public final Precaution precautionForIllegalMethod;
+        public final Precaution precautionForIllegalRateLimit;
         public final Precaution precautionForIllegalRedirect;
         public final Precaution precautionForIllegalTrace;
         public final URIIndex<Boolean> traceURIs;
-        //TODO: 添加图字段
+        public final ReadOnlyMap<String, URIIndex<RateLimit>> rateLimits;  //key为APP名称，空串代表所有APP
+        public final TraceGraph traceGraph;
 
         private Protections(long frequencyDetectIntervalInSecond,
                             int frequencyDetectTimes,
@@ -340,9 +674,12 @@ public final class Settings {
                             Precaution precautionForIllegalForward,
                             Precaution precautionForIllegalFrequency,
                             Precaution precautionForIllegalMethod,
+                            Precaution precautionForIllegalRateLimit,
                             Precaution precautionForIllegalRedirect,
                             Precaution precautionForIllegalTrace,
-                            URIIndex<Boolean> traceURIs) {
+                            URIIndex<Boolean> traceURIs,
+                            ReadOnlyMap<String, URIIndex<RateLimit>> rateLimits,
+                            TraceGraph traceGraph) {
             this.frequencyDetectIntervalInSecond = frequencyDetectIntervalInSecond;
             this.frequencyDetectTimes = frequencyDetectTimes;
             this.precautionForBlackList = precautionForBlackList;
@@ -351,9 +688,25 @@ public final class Settings {
             this.precautionForIllegalForward = precautionForIllegalForward;
             this.precautionForIllegalFrequency = precautionForIllegalFrequency;
             this.precautionForIllegalMethod = precautionForIllegalMethod;
+            this.precautionForIllegalRateLimit = precautionForIllegalRateLimit;
             this.precautionForIllegalRedirect = precautionForIllegalRedirect;
             this.precautionForIllegalTrace = precautionForIllegalTrace;
             this.traceURIs = traceURIs;
+            this.rateLimits = rateLimits;
+            this.traceGraph = traceGraph;
+        }
+
+        /**
+         * 查找适用于请求的限速策略，APP专属的策略优先于所有APP共用的策略。
+         *
+         * @return 没有适用的策略则返回null
+         */
+        public RateLimit findRateLimit(String appName, URI uri) {
+            if (rateLimits.isEmpty()) {
+                return null;
+            }
+            RateLimit rateLimit = appName == null ? null : RateLimit.match(rateLimits.get(appName), uri);
+            return rateLimit == null ? RateLimit.match(rateLimits.get(""), uri) : rateLimit;
         }
 
         private static Protections fromProtectNode(ProtectNode protectNode) throws ApplyException {
@@ -374,6 +727,13 @@ public final class Settings {
                     }
                 }
             }
+            HashMap<String, URIIndex<RateLimit>> rateLimits = new HashMap<>();
+            if (protectNode.rateLimits != null) {
+                for (RateLimitNode rateLimitNode : protectNode.rateLimits) {
+                    RateLimit.putRateLimitNode(rateLimitNode, rateLimits);
+                }
+            }
+            Precaution precautionForIllegalFrequency = Precaution.fromPrecautionNode(protectNode.illegalFreq);
             Protections protections = new Protections(
                     protectNode.config.frequencyDetectIntervalInSecond,
                     protectNode.config.frequencyDetectTimes,
@@ -381,11 +741,15 @@ public final class Settings {
                     Precaution.fromPrecautionNode(protectNode.illegalAgent),
                     Precaution.fromPrecautionNode(protectNode.illegalData),
                     Precaution.fromPrecautionNode(protectNode.illegalForward),
-                    Precaution.fromPrecautionNode(protectNode.illegalFreq),
+                    precautionForIllegalFrequency,
                     Precaution.fromPrecautionNode(protectNode.illegalMethod),
+                    //旧的配置文件没有illegalRateLimit，沿用访问频率的措施
+                    protectNode.illegalRateLimit == null ? precautionForIllegalFrequency : Precaution.fromPrecautionNode(protectNode.illegalRateLimit),
                     Precaution.fromPrecautionNode(protectNode.illegalRedirect),
                     Precaution.fromPrecautionNode(protectNode.illegalTrace),
-                    traceURIs
+                    traceURIs,
+                    new ReadOnlyMap<>(rateLimits),
+                    new TraceGraph(protectNode.paths)
             );
             return protections;
         }
@@ -393,18 +757,22 @@ public final class Settings {
 
     public static final class RuntimeSettings {
         public final ReadOnlyMap<Integer, ApplicationMapping> appMappings;
+        public final ReadOnlyMap<String, WebApplication> apps;     //key为APP名称
         public final Protections protections;
+        public final RulerPipeline rulerPipeline;   //由protections编译出的防火墙规则链，使用此配置的所有连接共享
 
-        private RuntimeSettings(ReadOnlyMap<Integer, ApplicationMapping> appMappings, Protections protections) {
+        private RuntimeSettings(ReadOnlyMap<Integer, ApplicationMapping> appMappings, ReadOnlyMap<String, WebApplication> apps, Protections protections) {
             this.appMappings = appMappings;
+            this.apps = apps;
             this.protections = protections;
+            this.rulerPipeline = RulerPipeline.compile(protections);
         }
     }
 
     public static final String LOG_CATEGORY = "设置管理器";
     private static StaticSettings staticSettings;
     private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
-    private static RuntimeSettings runtimeSettings;
+    private static volatile RuntimeSettings runtimeSettings;
 
     private static final ReentrantReadWriteLock configFileLock = new ReentrantReadWriteLock(true);
     private static final File FILE_APPS = new File("configs" + File.separator + "apps.json");
@@ -535,7 +903,7 @@ public final class Settings {
             }
         }
         protections = Protections.fromProtectNode((ProtectNode) settingNodes[2]);
-        return new RuntimeSettings(new ReadOnlyMap<>(appMappings), protections);
+        return new RuntimeSettings(new ReadOnlyMap<>(appMappings), new ReadOnlyMap<>(apps), protections);
     }
 
     static boolean initSettings() {
@@ -548,6 +916,7 @@ public final class Settings {
             return false;
         }
         Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "配置文件加载成功！");
+        warnIneffectiveSettings(runtimeSettings);
         return true;
     }
 
@@ -556,6 +925,15 @@ public final class Settings {
         Settings.runtimeSettings = runtimeSettings;
         lock.writeLock().unlock();
         Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已应用新的配置。新的配置将从下一个连接起生效。");
+        warnIneffectiveSettings(runtimeSettings);
+    }
+
+    //提示能通过校验但不会生效的配置
+    private static void warnIneffectiveSettings(RuntimeSettings runtimeSettings) {
+        Protections protections = runtimeSettings.protections;
+        if (!protections.rateLimits.isEmpty() && "disabled".equals(protections.precautionForIllegalRateLimit.method)) {
+            Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "已配置限速策略，但illegalRateLimit的措施为disabled，限速策略不会生效。");
+        }
     }
 
     //此函数可能会被其他线程调用
@@ -565,9 +943,7 @@ public final class Settings {
 
     //此函数可能会被其他线程调用
     public static RuntimeSettings getRuntimeSettings() {
-        lock.readLock().lock();
-        RuntimeSettings ret = runtimeSettings;
-        lock.readLock().unlock();
-        return ret;
+        //RuntimeSettings不可变，整体替换，读取时不需要加锁
+        return runtimeSettings;
     }
 }
\ No newline at end of file
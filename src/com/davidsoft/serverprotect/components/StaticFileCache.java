@@ -0,0 +1,320 @@
+package com.davidsoft.serverprotect.components;
+
+import com.davidsoft.net.http.DirectReferByteArrayOutputStream;
+import com.davidsoft.net.http.EncodingOutputStream;
+import com.davidsoft.net.http.HttpCompressionPolicy;
+import com.davidsoft.net.http.HttpContentEncodedStreamFactory;
+import com.davidsoft.net.http.HttpHeaders;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 静态文件缓存。以文件的规范路径为key，缓存文件的内容与元数据，按总字节数做LRU淘汰，文件的修改时间或大小变化后自动失效。
+ * <p>文件被缓存时，会按{@link HttpContentEncodedStreamFactory#getSupportedContentEncodings()}中的每种编码各压缩一次，压缩结果与原文件一同缓存。
+ * 若同目录下存在不旧于原文件的同名.gz文件，则gzip编码直接使用该文件。</p>
+ */
+public final class StaticFileCache {
+
+    private static final String LOG_CATEGORY = "静态文件缓存";
+
+    private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * 一个静态文件的元数据，若文件被缓存，则同时持有文件内容。
+     */
+    public static final class CachedFile {
+        public final File file;
+        public final String mimeType;
+        public final long length;
+        public final long lastModified;     //精确到秒，与Last-Modified一致
+        public final String eTag;
+        public final String lastModifiedString;
+        public final byte[] data;           //文件内容。文件过大而未被缓存时为null
+        public final Map<String, byte[]> encodedData;   //预先编码好的文件内容，key为ContentEncoding。文件未被缓存时为null
+        public final Map<String, File> encodedFiles;    //磁盘上预先编码好的文件，仅在文件未被缓存时使用，可能为null
+        private final long cost;            //在缓存中占用的字节数
+
+        private CachedFile(File file, String mimeType, long length, long lastModified, String eTag, byte[] data, Map<String, byte[]> encodedData, Map<String, File> encodedFiles) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+            this.lastModifiedString = HTTP_DATE_FORMATTER.format(Instant.ofEpochSecond(lastModified / 1000));
+            this.data = data;
+            this.encodedData = encodedData;
+            this.encodedFiles = encodedFiles;
+            long cost = length;
+            if (encodedData != null) {
+                for (byte[] encoded : encodedData.values()) {
+                    cost += encoded.length;
+                }
+            }
+            this.cost = cost;
+        }
+
+        /**
+         * 按If-None-Match与If-Modified-Since判断浏览器中的副本是否仍然有效。两者同时存在时，以If-None-Match为准。
+         */
+        public boolean isNotModified(HttpHeaders requestHeaders) {
+            String ifNoneMatch = requestHeaders.getFieldValue("If-None-Match");
+            if (ifNoneMatch != null) {
+                return matchETag(ifNoneMatch) != null;
+            }
+            String ifModifiedSince = requestHeaders.getFieldValue("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                long since;
+                try {
+                    since = ZonedDateTime.parse(ifModifiedSince.trim(), HTTP_DATE_FORMATTER).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+                return lastModified <= since;
+            }
+            return false;
+        }
+
+        /**
+         * @return 304响应中应给出的ETag：浏览器持有的是某一编码的内容时，为该编码的ETag
+         */
+        public String getNotModifiedETag(HttpHeaders requestHeaders) {
+            String ifNoneMatch = requestHeaders.getFieldValue("If-None-Match");
+            String matched = ifNoneMatch == null ? null : matchETag(ifNoneMatch);
+            return matched == null || matched.equals("*") ? eTag : matched;
+        }
+
+        //If-None-Match使用弱比较，即忽略W/前缀。编码后的内容的ETag带有编码的后缀，也视为匹配
+        //返回匹配的项(不含W/前缀)，没有则返回null
+        private String matchETag(String ifNoneMatch) {
+            String prefix = eTag.substring(0, eTag.length() - 1);
+            for (String item : ifNoneMatch.split(",")) {
+                item = item.trim();
+                if (item.equals("*")) {
+                    return item;
+                }
+                if (item.startsWith("W/")) {
+                    item = item.substring(2);
+                }
+                if (item.equals(eTag)) {
+                    return item;
+                }
+                if (item.startsWith(prefix) && item.endsWith("\"")) {
+                    String suffix = item.substring(prefix.length(), item.length() - 1);
+                    for (String contentEncoding : HttpContentEncodedStreamFactory.getSupportedContentEncodings()) {
+                        if (contentEncoding != null && suffix.equals(HttpContentEncodedStreamFactory.eTagSuffixOf(contentEncoding))) {
+                            return item;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static LinkedHashMap<String, CachedFile> cache;
+    //请求的绝对路径(只规范化.与..，不访问磁盘)到规范路径的映射，命中时不必再解析符号链接，仅在未命中时重新解析
+    private static LinkedHashMap<String, String> canonicalPaths;
+    private static final int MAX_CANONICAL_PATHS = 4096;
+    private static long maxCacheSize;
+    private static long maxFileSize;
+    private static long cacheSize;
+
+    private static long hitCount;
+    private static long missCount;
+
+    public static void initManager() {
+        maxCacheSize = Settings.getStaticSettings().staticCacheSize;
+        maxFileSize = Math.min(Settings.getStaticSettings().staticCacheMaxFileSize, maxCacheSize);
+        cache = new LinkedHashMap<>(64, 0.75f, true);
+        canonicalPaths = new LinkedHashMap<String, String>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_CANONICAL_PATHS;
+            }
+        };
+        if (maxCacheSize > 0) {
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "静态文件缓存初始化成功！容量：" + maxCacheSize + "字节");
+        }
+        else {
+            Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "静态文件缓存已关闭。");
+        }
+    }
+
+    /**
+     * 获取一个文件的元数据(及内容)。缓存中的文件若已被修改，则重新读取。
+     *
+     * @return 若文件不存在、不是普通文件或无法访问(如路径中间是文件、上级目录无权限)，则返回null
+     * @throws IOException 普通文件存在但无法读取
+     */
+    //此函数会被多个线程调用
+    public static CachedFile get(File file) throws IOException {
+        Path path = file.toPath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (FileSystemException e) {
+            //与File.isFile()一致：路径无法访问视同不存在
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis() / 1000 * 1000;
+        if (maxCacheSize <= 0 || length > maxFileSize) {
+            File gzipFile = findGzipFile(file, lastModified);
+            return new CachedFile(
+                    file,
+                    Files.probeContentType(path),
+                    length,
+                    lastModified,
+                    buildMetaETag(length, lastModified),
+                    null,
+                    null,
+                    gzipFile == null ? null : Collections.singletonMap("gzip", gzipFile)
+            );
+        }
+
+        String absolutePath = path.toAbsolutePath().normalize().toString();
+        lock.lock();
+        try {
+            String canonicalPath = canonicalPaths.get(absolutePath);
+            CachedFile cached = canonicalPath == null ? null : cache.get(canonicalPath);
+            if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+                hitCount++;
+                return cached;
+            }
+            missCount++;
+        } finally {
+            lock.unlock();
+        }
+
+        //符号链接可能已被修改，未命中时重新解析
+        String key = file.getCanonicalPath();
+
+        //在锁外读取文件，同一文件被并发加载时，后放入的覆盖先放入的
+        byte[] data = Files.readAllBytes(path);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+        String mimeType = Files.probeContentType(path);
+        CachedFile loaded = new CachedFile(
+                file,
+                mimeType,
+                data.length,
+                lastModified,
+                "\"" + Long.toHexString(data.length) + "-" + Long.toHexString(crc32.getValue()) + "\"",
+                data,
+                HttpCompressionPolicy.getCurrent().shouldCompress(mimeType, data.length) ? encodeAll(file, data, lastModified) : null,
+                null
+        );
+        lock.lock();
+        try {
+            canonicalPaths.put(absolutePath, key);
+            CachedFile old = cache.put(key, loaded);
+            if (old != null) {
+                cacheSize -= old.cost;
+            }
+            cacheSize += loaded.cost;
+            Iterator<Map.Entry<String, CachedFile>> iterator = cache.entrySet().iterator();
+            while (cacheSize > maxCacheSize && iterator.hasNext()) {
+                CachedFile eldest = iterator.next().getValue();
+                if (eldest == loaded) {
+                    continue;
+                }
+                iterator.remove();
+                cacheSize -= eldest.cost;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return loaded;
+    }
+
+    //同目录下的同名.gz文件，若其不旧于原文件，则可直接作为gzip编码的内容
+    private static File findGzipFile(File file, long lastModified) throws IOException {
+        File gzipFile = new File(file.getPath() + ".gz");
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(gzipFile.toPath(), BasicFileAttributes.class);
+        } catch (FileSystemException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile() || attributes.lastModifiedTime().toMillis() / 1000 * 1000 < lastModified) {
+            return null;
+        }
+        return gzipFile;
+    }
+
+    private static Map<String, byte[]> encodeAll(File file, byte[] data, long lastModified) throws IOException {
+        HashMap<String, byte[]> encodedData = new HashMap<>();
+        for (String contentEncoding : HttpContentEncodedStreamFactory.getSupportedContentEncodings()) {
+            if (contentEncoding == null) {
+                continue;
+            }
+            if (contentEncoding.equals("gzip")) {
+                File gzipFile = findGzipFile(file, lastModified);
+                if (gzipFile != null) {
+                    encodedData.put(contentEncoding, Files.readAllBytes(gzipFile.toPath()));
+                    continue;
+                }
+            }
+            DirectReferByteArrayOutputStream buffer = new DirectReferByteArrayOutputStream(Math.max(data.length >> 2, 32));
+            EncodingOutputStream encoder = HttpContentEncodedStreamFactory.instanceOutputStream(buffer, contentEncoding);
+            encoder.write(data, 0, data.length);
+            encoder.close();
+            encodedData.put(contentEncoding, Arrays.copyOf(buffer.toByteArray(), buffer.size()));
+        }
+        return encodedData;
+    }
+
+    //未被缓存的文件无法廉价地计算内容摘要，以大小和修改时间作为ETag
+    private static String buildMetaETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * 清空缓存，如在静态文件被批量替换后调用。
+     */
+    public static void clear() {
+        lock.lock();
+        try {
+            cache.clear();
+            canonicalPaths.clear();
+            cacheSize = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return [命中次数, 未命中次数, 已缓存字节数, 已缓存文件数]
+     */
+    public static long[] getStatistics() {
+        lock.lock();
+        try {
+            return new long[] {hitCount, missCount, cacheSize, cache.size()};
+        } finally {
+            lock.unlock();
+        }
+    }
+}
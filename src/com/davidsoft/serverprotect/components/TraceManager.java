@@ -1,60 +1,127 @@
 package com.davidsoft.serverprotect.components;
 
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 维护每个traceId的访问路径信息。
+ * <p>traceId到节点的映射保存在{@link ConcurrentHashMap}中，查询不加锁。节点按traceId散列分为若干段，每段用一个双向链表按写入顺序串起本段的节点，
+ * 由于有效期固定，链表头总是最早到期的节点：写入时顺带移除本段链表头上已到期的节点，定时任务也只需从各段的链表头开始移除，开销与到期的节点数成正比。</p>
+ * <p>每段的节点数有上限，达到上限时移除最早写入的节点，因此即使不带cookie的爬虫每次请求都产生新的traceId，占用的内存也是有界的。</p>
+ */
 public final class TraceManager {
 
     private static final long TRACE_NODE_EXPIRES = 600000;
-    private static final long TRACE_NODE_CLEAN_INTERVAL = 600000;
+    private static final long TRACE_NODE_CLEAN_INTERVAL = 10000;
+    private static final int SEGMENT_COUNT = 64;                //必须为2的幂
+    private static final int TRACE_NODE_MAX_COUNT = 262144;
+    private static final int SEGMENT_MAX_COUNT = TRACE_NODE_MAX_COUNT / SEGMENT_COUNT;
 
     private static final class TraceNode {
-        private long expires;
-        private TraceInfo traceInfo;
+        private final String nodeId;
+        private final TraceInfo traceInfo = new TraceInfo();
+        private volatile long expires;
+        //以下字段需持有所在段的锁
+        private TraceNode prev;
+        private TraceNode next;
+
+        private TraceNode(String nodeId) {
+            this.nodeId = nodeId;
+        }
     }
 
     public static final class TraceInfo {
-        public String requiredRedirectLocation;
+        public volatile String requiredRedirectLocation;
+        public volatile int traceState;     //路径图中的状态，由Settings.TraceGraph#save编码
         public final ArrayList<String> history = new ArrayList<>();
     }
 
+    //一段节点，按写入顺序排列的双向链表，所有操作需持有此对象的锁
+    private static final class Segment {
+        private TraceNode head;
+        private TraceNode tail;
+        private int size;
+
+        private void unlink(TraceNode node) {
+            if (node.prev == null) {
+                head = node.next;
+            }
+            else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            }
+            else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        private void linkLast(TraceNode node) {
+            node.prev = tail;
+            if (tail == null) {
+                head = node;
+            }
+            else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+        }
+
+        //移除链表头上已到期的节点
+        private int removeExpired(long now) {
+            int removeCount = 0;
+            while (head != null && now >= head.expires) {
+                TraceNode node = head;
+                unlink(node);
+                traces.remove(node.nodeId, node);
+                removeCount++;
+            }
+            return removeCount;
+        }
+    }
+
     private static final String LOG_CATEGORY = "访问路径维护模块";
-    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
-    private static final HashMap<String, TraceNode> traces = new HashMap<>();
-    private static final Timer timer = new Timer();
+    private static final ConcurrentHashMap<String, TraceNode> traces = new ConcurrentHashMap<>(1024, 0.75f, SEGMENT_COUNT);
+    private static final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private static final LongAdder evictedCount = new LongAdder();
+    private static final Timer timer = new Timer("TraceManager", true);
 
+    static {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static Segment segmentOf(String nodeId) {
+        int h = nodeId.hashCode() * 0x9E3779B9;
+        return segments[(h >>> 26) & (SEGMENT_COUNT - 1)];
+    }
 
     //此函数可能会被其他线程调用
-    private static boolean doCleanUp() {
-        try {
-            lock.writeLock().lockInterruptibly();
-        } catch (InterruptedException e) {
-            return false;
-        }
+    private static void doCleanUp() {
         long now = System.currentTimeMillis();
         int removeCount = 0;
-        Iterator<TraceNode> iterator = traces.values().iterator();
-        while (iterator.hasNext()) {
-            TraceNode node = iterator.next();
-            if (now >= node.expires) {
-                iterator.remove();
-                removeCount++;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                removeCount += segment.removeExpired(now);
             }
         }
         if (removeCount > 0) {
             Program.logMain(Log.LOG_INFO, LOG_CATEGORY, "已清理 " + removeCount + " 个路径历史节点。");
         }
-        lock.writeLock().unlock();
-        return true;
     }
 
     public static boolean startUp() {
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
-                if (!doCleanUp()) {
-                    timer.cancel();
-                }
+                doCleanUp();
             }
         }, TRACE_NODE_CLEAN_INTERVAL, TRACE_NODE_CLEAN_INTERVAL);
         Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "访问路径维护模块初始化成功！");
@@ -68,34 +135,65 @@ public final class TraceManager {
 
     //此函数可能会被其他线程调用
     public static TraceInfo getTraceInfo(String nodeId) {
-        try {
-            lock.readLock().lockInterruptibly();
-        } catch (InterruptedException e) {
+        TraceNode traceNode = traces.get(nodeId);
+        //已到期但尚未被移除的节点视为不存在
+        if (traceNode == null || System.currentTimeMillis() >= traceNode.expires) {
             return null;
         }
+        return traceNode.traceInfo;
+    }
+
+    //取得nodeId的节点并更新有效期，不存在则创建
+    //需持有segment的锁
+    private static TraceNode touch(Segment segment, String nodeId, long now) {
+        segment.removeExpired(now);
         TraceNode traceNode = traces.get(nodeId);
-        lock.readLock().unlock();
         if (traceNode == null) {
-            return null;
+            if (segment.size >= SEGMENT_MAX_COUNT) {
+                TraceNode eldest = segment.head;
+                segment.unlink(eldest);
+                traces.remove(eldest.nodeId, eldest);
+                evictedCount.increment();
+            }
+            traceNode = new TraceNode(nodeId);
+            traces.put(nodeId, traceNode);
         }
-        return traceNode.traceInfo;
+        else {
+            segment.unlink(traceNode);
+        }
+        //有效期固定，重新写入的节点移到链表尾，链表保持按到期时间排序
+        traceNode.expires = now + TRACE_NODE_EXPIRES;
+        segment.linkLast(traceNode);
+        return traceNode;
     }
 
     //此函数可能会被其他线程调用
     public static void registerRedirect(String nodeId, String requiredRedirectLocation) {
-        try {
-            lock.writeLock().lockInterruptibly();
-        } catch (InterruptedException e) {
-            return;
+        Segment segment = segmentOf(nodeId);
+        synchronized (segment) {
+            touch(segment, nodeId, System.currentTimeMillis()).traceInfo.requiredRedirectLocation = requiredRedirectLocation;
         }
-        TraceNode traceNode = traces.get(nodeId);
-        if (traceNode == null) {
-            traceNode = new TraceNode();
-            traceNode.traceInfo = new TraceInfo();
-            traces.put(nodeId, traceNode);
+    }
+
+    //此函数可能会被其他线程调用
+    public static void registerTraceState(String nodeId, int traceState) {
+        Segment segment = segmentOf(nodeId);
+        synchronized (segment) {
+            touch(segment, nodeId, System.currentTimeMillis()).traceInfo.traceState = traceState;
         }
-        traceNode.expires = System.currentTimeMillis() + TRACE_NODE_EXPIRES;
-        traceNode.traceInfo.requiredRedirectLocation = requiredRedirectLocation;
-        lock.writeLock().unlock();
     }
-}
\ No newline at end of file
+
+    /**
+     * @return 当前保存的节点数
+     */
+    public static int getTraceCount() {
+        return traces.size();
+    }
+
+    /**
+     * @return 启动以来因达到数量上限而被提前移除的节点数
+     */
+    public static long getEvictedCount() {
+        return evictedCount.sum();
+    }
+}
@@ -0,0 +1,217 @@
+package com.davidsoft.serverprotect.components;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * 无状态的访问路径令牌。
+ * <p>启用后，traceId cookie中直接携带“下一个请求必须访问的地址”的摘要及有效期，并以HMAC签名，服务器不再为每个访客保存状态，
+ * 验证时也不需要查询共享的表或加锁。多个实例配置相同的密钥时，可以互相验证对方签发的令牌。</p>
+ * <p>签名密钥由主密钥按时间段派生，每隔traceTokenKeyRotationInSecond秒更换一次，验证时接受当前与上一时间段的密钥。</p>
+ * <p>令牌格式(base64url编码)：</p>
+ * <pre>
+ * byte    版本号
+ * int     密钥的时间段编号
+ * int     到期时间(秒)
+ * byte    是否指定了地址
+ * byte[12] 地址的SHA-256摘要的前12字节(仅当指定了地址时存在)
+ * byte[16] 以上内容的HMAC-SHA256的前16字节
+ * </pre>
+ */
+public final class TraceTokens {
+
+    private static final String LOG_CATEGORY = "访问路径维护模块";
+
+    public static final String MODE_SERVER = "server";
+    public static final String MODE_TOKEN = "token";
+
+    private static final byte VERSION = 1;
+    private static final long TOKEN_EXPIRES = 600;  //秒，与服务器端保存的路径信息的有效期相同
+    private static final int HEAD_LENGTH = 10;
+    private static final int HASH_LENGTH = 12;
+    private static final int MAC_LENGTH = 16;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] KEY_LABEL = "trace-key".getBytes(StandardCharsets.US_ASCII);
+
+    //某一时间段的签名密钥，创建后不再改变
+    private static final class EpochKey {
+        private final long epoch;
+        private final SecretKeySpec key;
+
+        private EpochKey(long epoch, SecretKeySpec key) {
+            this.epoch = epoch;
+            this.key = key;
+        }
+    }
+
+    //Mac与MessageDigest不是线程安全的，每个线程各用一份
+    private static final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static boolean enabled;
+    private static SecretKeySpec masterKey;
+    private static long rotationInterval;    //秒
+    private static volatile EpochKey currentKey;
+    private static volatile EpochKey previousKey;
+
+    static void startUp() {
+        Settings.StaticSettings staticSettings = Settings.getStaticSettings();
+        enabled = MODE_TOKEN.equals(staticSettings.traceMode);
+        if (!enabled) {
+            return;
+        }
+        byte[] secret;
+        if (staticSettings.traceTokenSecret.isEmpty()) {
+            secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            Log.logMain(Log.LOG_WARNING, LOG_CATEGORY, "未配置traceTokenSecret，已使用随机密钥，其他实例签发的访问路径令牌将无法验证。");
+        }
+        else {
+            secret = staticSettings.traceTokenSecret.getBytes(StandardCharsets.UTF_8);
+        }
+        masterKey = new SecretKeySpec(secret, MAC_ALGORITHM);
+        //密钥的有效期不能短于令牌，否则令牌到期前密钥就已失效
+        rotationInterval = Math.max(staticSettings.traceTokenKeyRotationInSecond, TOKEN_EXPIRES);
+        Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "已启用无状态的访问路径令牌。");
+    }
+
+    /**
+     * @return 是否以令牌代替服务器端保存的路径信息
+     */
+    //此函数可能会被其他线程调用
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    //此函数可能会被其他线程调用
+    private static SecretKeySpec keyOf(long epoch) {
+        EpochKey key = currentKey;
+        if (key != null && key.epoch == epoch) {
+            return key.key;
+        }
+        key = previousKey;
+        if (key != null && key.epoch == epoch) {
+            return key.key;
+        }
+        //派生新的密钥：HMAC(主密钥, "trace-key" || 时间段编号)
+        Mac mac = macs.get();
+        try {
+            mac.init(masterKey);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        mac.update(KEY_LABEL);
+        mac.update(ByteBuffer.allocate(8).putLong(0, epoch));
+        EpochKey derived = new EpochKey(epoch, new SecretKeySpec(mac.doFinal(), MAC_ALGORITHM));
+        //多个线程同时派生时，结果相同，谁覆盖谁都可以
+        synchronized (TraceTokens.class) {
+            EpochKey current = currentKey;
+            if (current == null || current.epoch < epoch) {
+                previousKey = current;
+                currentKey = derived;
+            }
+            else if (current.epoch != epoch) {
+                previousKey = derived;
+            }
+        }
+        return derived.key;
+    }
+
+    private static byte[] sign(long epoch, byte[] data, int length) {
+        Mac mac = macs.get();
+        try {
+            mac.init(keyOf(epoch));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        mac.update(data, 0, length);
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+
+    private static byte[] hashOf(String location) {
+        return Arrays.copyOf(digests.get().digest(location.getBytes(StandardCharsets.UTF_8)), HASH_LENGTH);
+    }
+
+    /**
+     * 签发令牌。
+     *
+     * @param requiredRedirectLocation 下一个请求必须访问的地址，为null代表不限制
+     */
+    //此函数可能会被其他线程调用
+    public static String issue(String requiredRedirectLocation) {
+        long nowInSecond = System.currentTimeMillis() / 1000;
+        long epoch = nowInSecond / rotationInterval;
+        int length = HEAD_LENGTH + (requiredRedirectLocation == null ? 0 : HASH_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(length + MAC_LENGTH);
+        buffer.put(VERSION).putInt((int) epoch).putInt((int) (nowInSecond + TOKEN_EXPIRES));
+        if (requiredRedirectLocation == null) {
+            buffer.put((byte) 0);
+        }
+        else {
+            buffer.put((byte) 1).put(hashOf(requiredRedirectLocation));
+        }
+        buffer.put(sign(epoch, buffer.array(), length));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * 验证令牌是否允许访问location。
+     * <p>与服务器端保存路径信息时一致：无法识别、签名不正确或已到期的令牌视为没有路径信息，允许访问。</p>
+     */
+    //此函数可能会被其他线程调用
+    public static boolean verify(String token, String location) {
+        byte[] data;
+        try {
+            data = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+        if (data.length != HEAD_LENGTH + MAC_LENGTH && data.length != HEAD_LENGTH + HASH_LENGTH + MAC_LENGTH) {
+            return true;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.get() != VERSION) {
+            return true;
+        }
+        long epoch = buffer.getInt() & 0xFFFFFFFFL;
+        long expires = buffer.getInt() & 0xFFFFFFFFL;
+        boolean hasLocation = buffer.get() != 0;
+        if (hasLocation != (data.length == HEAD_LENGTH + HASH_LENGTH + MAC_LENGTH)) {
+            return true;
+        }
+        long nowInSecond = System.currentTimeMillis() / 1000;
+        long currentEpoch = nowInSecond / rotationInterval;
+        if (nowInSecond >= expires || (epoch != currentEpoch && epoch != currentEpoch - 1)) {
+            return true;
+        }
+        int length = data.length - MAC_LENGTH;
+        //以固定时间比较，不泄露签名从哪一字节开始不同
+        if (!MessageDigest.isEqual(sign(epoch, data, length), Arrays.copyOfRange(data, length, data.length))) {
+            return true;
+        }
+        if (!hasLocation) {
+            return true;
+        }
+        return MessageDigest.isEqual(hashOf(location), Arrays.copyOfRange(data, HEAD_LENGTH, HEAD_LENGTH + HASH_LENGTH));
+    }
+}
@@ -0,0 +1,274 @@
+package com.davidsoft.serverprotect.components;
+
+import com.davidsoft.serverprotect.Utils;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 转发APP与目标服务器之间的连接池，全进程共享，以(目标域名, 端口, 是否SSL)区分。
+ * <p>每个目标服务器的连接数(空闲 + 使用中)不超过上限，达到上限时申请者等待，直到有连接被归还或超时。</p>
+ * <p>空闲连接按最近使用的顺序复用，空闲过久的连接在申请和归还时被顺带清理。复用之前会以非阻塞读检查连接是否已被对方关闭。</p>
+ */
+public final class UpstreamConnectionPool {
+
+    private static final String LOG_CATEGORY = "上游连接池";
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * 从连接池中取出的一个到目标服务器的连接。使用完毕后必须调用{@link #release(Connection, boolean)}归还。
+     */
+    public static final class Connection {
+        private final HostPool hostPool;
+        private final SocketChannel channel;
+        public final Socket socket;     //SSL时为SSLSocket
+        public final InputStream in;    //带缓冲，Http头部可以成块读取
+        public final OutputStream out;  //带缓冲，写完请求后需要flush
+        private long lastUsed;
+        private boolean reused;
+
+        private Connection(HostPool hostPool, SocketChannel channel, Socket socket) throws IOException {
+            this.hostPool = hostPool;
+            this.channel = channel;
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        /**
+         * @return 此连接是否是复用的空闲连接。复用的连接可能在检查之后才被对方关闭，因此请求失败时可以换一个新连接重试。
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        //空闲连接上不应有任何数据，可读到数据或流结束都说明连接已不可用
+        private boolean isAlive() {
+            if (socket.isClosed()) {
+                return false;
+            }
+            try {
+                if (in.available() > 0) {
+                    return false;
+                }
+                channel.configureBlocking(false);
+                int length;
+                try {
+                    length = channel.read(ByteBuffer.allocate(1));
+                } finally {
+                    channel.configureBlocking(true);
+                }
+                return length == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private static final class HostPool {
+        private final String domain;
+        private final int port;
+        private final boolean ssl;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private final ArrayDeque<Connection> idleConnections = new ArrayDeque<>();  //头部为最近归还的
+        private int totalConnections;   //空闲 + 使用中
+
+        private HostPool(String domain, int port, boolean ssl) {
+            this.domain = domain;
+            this.port = port;
+            this.ssl = ssl;
+        }
+
+        //需持有lock
+        private void evictExpired(long now) {
+            Connection connection;
+            while ((connection = idleConnections.peekLast()) != null && now - connection.lastUsed > idleTimeout) {
+                idleConnections.pollLast();
+                discardLocked(connection);
+                evictedCount.incrementAndGet();
+            }
+        }
+
+        //需持有lock
+        private void discardLocked(Connection connection) {
+            totalConnections--;
+            Utils.closeWithoutException(connection.socket, true);
+            available.signal();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, HostPool> hostPools = new ConcurrentHashMap<>();
+    private static int maxConnectionsPerHost;
+    private static long idleTimeout;
+    private static long acquireTimeout;
+    private static volatile boolean flag;
+
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+    private static final AtomicLong waitCount = new AtomicLong();
+    private static final AtomicLong waitNanos = new AtomicLong();
+    private static final AtomicLong evictedCount = new AtomicLong();
+
+    public static void startUp() {
+        Settings.StaticSettings staticSettings = Settings.getStaticSettings();
+        maxConnectionsPerHost = staticSettings.upstreamMaxConnectionsPerHost;
+        idleTimeout = staticSettings.upstreamIdleTimeoutInSecond * 1000L;
+        acquireTimeout = staticSettings.upstreamAcquireTimeoutInSecond * 1000L;
+        flag = true;
+        Log.logMain(Log.LOG_INFO, LOG_CATEGORY, "上游连接池初始化成功！每个目标服务器最多" + maxConnectionsPerHost + "个连接。");
+    }
+
+    public static void shutDown() {
+        flag = false;
+        for (HostPool hostPool : hostPools.values()) {
+            hostPool.lock.lock();
+            try {
+                Connection connection;
+                while ((connection = hostPool.idleConnections.poll()) != null) {
+                    hostPool.discardLocked(connection);
+                }
+            } finally {
+                hostPool.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 申请一个到目标服务器的连接。优先复用空闲连接，没有空闲连接且未达上限时建立新连接，否则等待。
+     *
+     * @throws IOException 建立连接失败，或等待超时
+     */
+    //此函数会被多个线程调用
+    public static Connection acquire(String domain, int port, boolean ssl) throws IOException {
+        HostPool hostPool = hostPools.computeIfAbsent(domain + ":" + port + (ssl ? ":ssl" : ""), key -> new HostPool(domain, port, ssl));
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+        boolean waited = false;
+        hostPool.lock.lock();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                Connection connection;
+                while ((connection = hostPool.idleConnections.pollFirst()) != null) {
+                    if (now - connection.lastUsed > idleTimeout || !connection.isAlive()) {
+                        hostPool.discardLocked(connection);
+                        evictedCount.incrementAndGet();
+                        continue;
+                    }
+                    connection.reused = true;
+                    hitCount.incrementAndGet();
+                    recordWait(waited, startTime);
+                    return connection;
+                }
+                if (hostPool.totalConnections < maxConnectionsPerHost) {
+                    hostPool.totalConnections++;
+                    break;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    recordWait(true, startTime);
+                    throw new IOException("等待连接" + domain + ":" + port + "超时");
+                }
+                waited = true;
+                try {
+                    hostPool.available.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    throw new IOException("等待连接时被中断", e);
+                }
+            }
+        } finally {
+            hostPool.lock.unlock();
+        }
+        recordWait(waited, startTime);
+
+        //在锁外建立新连接
+        missCount.incrementAndGet();
+        try {
+            return connect(hostPool);
+        } catch (IOException e) {
+            hostPool.lock.lock();
+            hostPool.totalConnections--;
+            hostPool.available.signal();
+            hostPool.lock.unlock();
+            throw e;
+        }
+    }
+
+    private static void recordWait(boolean waited, long startTime) {
+        if (waited) {
+            waitCount.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    private static Connection connect(HostPool hostPool) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(hostPool.domain, hostPool.port), (int) acquireTimeout);
+            Socket socket = channel.socket();
+            if (hostPool.ssl) {
+                socket = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, hostPool.domain, hostPool.port, true);
+            }
+            return new Connection(hostPool, channel, socket);
+        } catch (IOException e) {
+            Utils.closeWithoutException(channel, true);
+            throw e;
+        }
+    }
+
+    /**
+     * 归还连接。
+     *
+     * @param reusable 连接上的事务是否已完整结束且可以复用。为false时连接会被关闭。
+     */
+    //此函数会被多个线程调用
+    public static void release(Connection connection, boolean reusable) {
+        HostPool hostPool = connection.hostPool;
+        hostPool.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (reusable && flag) {
+                connection.lastUsed = now;
+                hostPool.idleConnections.offerFirst(connection);
+                hostPool.available.signal();
+            }
+            else {
+                hostPool.discardLocked(connection);
+            }
+            hostPool.evictExpired(now);
+        } finally {
+            hostPool.lock.unlock();
+        }
+    }
+
+    /**
+     * @return [复用次数, 新建连接次数, 等待次数, 累计等待时间(纳秒), 因空闲过久或失效而关闭的连接数]
+     */
+    public static long[] getStatistics() {
+        return new long[] {hitCount.get(), missCount.get(), waitCount.get(), waitNanos.get(), evictedCount.get()};
+    }
+
+    /**
+     * @return 复用率，尚无任何申请时返回0
+     */
+    public static double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
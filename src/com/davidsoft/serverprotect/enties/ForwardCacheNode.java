@@ -0,0 +1,13 @@
+package com.davidsoft.serverprotect.enties;
+
+public final class ForwardCacheNode {
+
+    public boolean enabled;
+    public long memorySize = 16777216;
+    public long diskSize = 268435456;
+    public long maxMemoryObjectSize = 262144;
+    public long maxObjectSize = 67108864;
+    public long ttlOverrideInSecond = -1;
+    public long defaultTtlInSecond;
+    public long coalesceTimeoutInMillis = 3000;
+}
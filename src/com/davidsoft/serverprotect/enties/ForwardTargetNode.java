@@ -6,4 +6,5 @@ public final class ForwardTargetNode {
     public int port;
     public boolean ssl;
     public boolean forwardIp;
+    public ForwardCacheNode cache = new ForwardCacheNode();
 }
@@ -8,7 +8,9 @@ public final class ProtectNode {
     public PrecautionNode illegalForward;
     public PrecautionNode illegalFreq;
     public PrecautionNode illegalMethod;
+    public PrecautionNode illegalRateLimit;     //未指定时与illegalFreq相同
     public PrecautionNode illegalRedirect;
     public PrecautionNode illegalTrace;
     public PathsNode paths;
+    public RateLimitNode[] rateLimits;
 }
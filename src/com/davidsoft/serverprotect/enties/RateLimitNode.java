@@ -0,0 +1,9 @@
+package com.davidsoft.serverprotect.enties;
+
+public final class RateLimitNode {
+
+    public String app = "";
+    public String url;
+    public double ratePerSecond;
+    public int burst = 1;
+}
@@ -4,11 +4,34 @@ import java.util.Properties;
 
 public final class ServerNode {
 
+    private static final String DEFAULT_COMPRESSIBLE_MIME_TYPES = "text/*,application/javascript,application/x-javascript,application/json,application/xml,image/svg+xml";
+
     public int maxConnections;
     public int maxServices;
     public boolean keepConnections;
     public int maxPathLength;
     public int maxHeaderSize;
+    public boolean reactorMode;
+    public boolean virtualThreads;
+    public long staticCacheSize;
+    public long staticCacheMaxFileSize;
+    public long compressionMinSize;
+    public long compressionStreamThreshold;
+    public String[] compressibleMimeTypes;     //为null代表不限制
+    public int upstreamMaxConnectionsPerHost;
+    public int upstreamIdleTimeoutInSecond;
+    public int upstreamAcquireTimeoutInSecond;
+    public String blackListFsyncPolicy;
+    public long blackListFsyncIntervalInMillis;
+    public long blackListCompactThreshold;
+    public boolean resetBlockedConnections;
+    public String traceMode;
+    public String traceTokenSecret;
+    public long traceTokenKeyRotationInSecond;
+    public boolean adaptiveRulerOrder;
+    public int rulerReorderIntervalInSecond;
+    public int readTimeoutInSecond;
+    public int keepAliveTimeoutInSecond;
 
     public ServerNode() {
         maxConnections = 1024;
@@ -16,6 +39,27 @@ public final class ServerNode {
         keepConnections = true;
         maxPathLength = 256;
         maxHeaderSize = 5120;
+        reactorMode = false;
+        virtualThreads = false;
+        staticCacheSize = 33554432;
+        staticCacheMaxFileSize = 4194304;
+        compressionMinSize = 1024;
+        compressionStreamThreshold = 1048576;
+        compressibleMimeTypes = DEFAULT_COMPRESSIBLE_MIME_TYPES.split(",");
+        upstreamMaxConnectionsPerHost = 64;
+        upstreamIdleTimeoutInSecond = 30;
+        upstreamAcquireTimeoutInSecond = 10;
+        blackListFsyncPolicy = "interval";
+        blackListFsyncIntervalInMillis = 1000;
+        blackListCompactThreshold = 10000;
+        resetBlockedConnections = false;
+        traceMode = "server";
+        traceTokenSecret = "";
+        traceTokenKeyRotationInSecond = 86400;
+        adaptiveRulerOrder = false;
+        rulerReorderIntervalInSecond = 60;
+        readTimeoutInSecond = 20;
+        keepAliveTimeoutInSecond = 60;
     }
 
     public ServerNode(Properties properties) {
@@ -24,5 +68,27 @@ public final class ServerNode {
         keepConnections = Boolean.parseBoolean(properties.getProperty("keepConnections"));
         maxPathLength = Integer.parseInt(properties.getProperty("maxPathLength"));
         maxHeaderSize = Integer.parseInt(properties.getProperty("maxHeaderSize"));
+        reactorMode = Boolean.parseBoolean(properties.getProperty("reactorMode", "false"));
+        virtualThreads = Boolean.parseBoolean(properties.getProperty("virtualThreads", "false"));
+        staticCacheSize = Long.parseLong(properties.getProperty("staticCacheSize", "33554432"));
+        staticCacheMaxFileSize = Long.parseLong(properties.getProperty("staticCacheMaxFileSize", "4194304"));
+        compressionMinSize = Long.parseLong(properties.getProperty("compressionMinSize", "1024"));
+        compressionStreamThreshold = Long.parseLong(properties.getProperty("compressionStreamThreshold", "1048576"));
+        String value = properties.getProperty("compressibleMimeTypes", DEFAULT_COMPRESSIBLE_MIME_TYPES).trim();
+        compressibleMimeTypes = value.isEmpty() ? null : value.split(",");
+        upstreamMaxConnectionsPerHost = Integer.parseInt(properties.getProperty("upstreamMaxConnectionsPerHost", "64"));
+        upstreamIdleTimeoutInSecond = Integer.parseInt(properties.getProperty("upstreamIdleTimeoutInSecond", "30"));
+        upstreamAcquireTimeoutInSecond = Integer.parseInt(properties.getProperty("upstreamAcquireTimeoutInSecond", "10"));
+        blackListFsyncPolicy = properties.getProperty("blackListFsyncPolicy", "interval").trim();
+        blackListFsyncIntervalInMillis = Long.parseLong(properties.getProperty("blackListFsyncIntervalInMillis", "1000"));
+        blackListCompactThreshold = Long.parseLong(properties.getProperty("blackListCompactThreshold", "10000"));
+        resetBlockedConnections = Boolean.parseBoolean(properties.getProperty("resetBlockedConnections", "false"));
+        traceMode = properties.getProperty("traceMode", "server").trim();
+        traceTokenSecret = properties.getProperty("traceTokenSecret", "").trim();
+        traceTokenKeyRotationInSecond = Long.parseLong(properties.getProperty("traceTokenKeyRotationInSecond", "86400"));
+        adaptiveRulerOrder = Boolean.parseBoolean(properties.getProperty("adaptiveRulerOrder", "false"));
+        rulerReorderIntervalInSecond = Integer.parseInt(properties.getProperty("rulerReorderIntervalInSecond", "60"));
+        readTimeoutInSecond = Integer.parseInt(properties.getProperty("readTimeoutInSecond", "20"));
+        keepAliveTimeoutInSecond = Integer.parseInt(properties.getProperty("keepAliveTimeoutInSecond", "60"));
     }
 }
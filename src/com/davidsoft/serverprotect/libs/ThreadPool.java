@@ -2,25 +2,52 @@ package com.davidsoft.serverprotect.libs;
 
 import com.davidsoft.collections.IdSet;
 
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ThreadPool {
 
-    private final class PooledThread extends Thread {
+    /**
+     * 虚拟线程的工厂(Thread.ofVirtual().factory())。当前JDK不支持虚拟线程时为null。
+     * 由于本项目需兼容较低版本的JDK，这里通过反射获取。
+     */
+    private static final ThreadFactory virtualThreadFactory;
+
+    static {
+        ThreadFactory factory;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            factory = null;
+        }
+        virtualThreadFactory = factory;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * 虚拟线程不能被继承，因此由此类持有所运行的线程，而不是继承Thread。
+     */
+    private final class PooledThread implements Runnable {
         private final int id;
         private final PooledRunnable pooledRunnable;
+        private final Thread thread;
         private boolean releaseResourceOnStop;
 
         private PooledThread(int id, PooledRunnable pooledRunnable) {
             this.id = id;
             this.pooledRunnable = pooledRunnable;
+            thread = useVirtualThread ? virtualThreadFactory.newThread(this) : new Thread(this);
             releaseResourceOnStop = true;
         }
 
         @Override
         public void run() {
-            super.run();
             if (id == -1) {
                 pooledRunnable.runWithoutService();
             }
@@ -30,7 +57,7 @@ public class ThreadPool {
                     try {
                         lock.lockInterruptibly();
                     } catch (InterruptedException e) {
-                        semaphore.release();
+                        releasePermit();
                         return;
                     }
                     threads.remove(id);
@@ -38,7 +65,7 @@ public class ThreadPool {
                 }
             }
             if (releaseResourceOnStop) {
-                semaphore.release();
+                releasePermit();
             }
         }
 
@@ -50,7 +77,7 @@ public class ThreadPool {
         private void requireForceStop() {
             releaseResourceOnStop = false;
             pooledRunnable.onForceStop();
-            interrupt();
+            thread.interrupt();
         }
     }
 
@@ -58,12 +85,45 @@ public class ThreadPool {
     private final Semaphore semaphore;
     private final IdSet<PooledThread> threads;
     private final int urgeThreshold;
+    private final boolean useVirtualThread;
+    private final CopyOnWriteArrayList<Runnable> releaseListeners;
 
     public ThreadPool(int maxThreads, int maxServices) {
+        this(maxThreads, maxServices, false);
+    }
+
+    /**
+     * @param virtualThread 是否在虚拟线程中执行PooledRunnable。若当前JDK不支持虚拟线程，则此参数无效，仍使用平台线程。
+     */
+    public ThreadPool(int maxThreads, int maxServices, boolean virtualThread) {
         lock = new ReentrantLock();
         semaphore = new Semaphore(maxThreads);
         threads = new IdSet<>(0, maxServices - 1);
         urgeThreshold = (int) (maxServices * 0.2);
+        useVirtualThread = virtualThread && isVirtualThreadSupported();
+        releaseListeners = new CopyOnWriteArrayList<>();
+    }
+
+    private void releasePermit() {
+        semaphore.release();
+        for (Runnable listener : releaseListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * 添加释放permit时的回调，回调在释放permit的线程中执行，不能阻塞。
+     */
+    public void addReleaseListener(Runnable listener) {
+        releaseListeners.add(listener);
+    }
+
+    public void removeReleaseListener(Runnable listener) {
+        releaseListeners.remove(listener);
+    }
+
+    public boolean isUsingVirtualThread() {
+        return useVirtualThread;
     }
 
     public void shutDown() {
@@ -75,7 +135,7 @@ public class ThreadPool {
         for (PooledThread thread : threads) {
             thread.requireForceStop();
             try {
-                thread.join();
+                thread.thread.join();
             } catch (InterruptedException e) {}
         }
         lock.unlock();
@@ -103,8 +163,7 @@ public class ThreadPool {
         }
     }
 
-    public void active(PooledRunnable runnable) throws InterruptedException {
-        lock.lockInterruptibly();
+    private PooledThread prepare(PooledRunnable runnable) {
         if (threads.full()) {
             requireForeStop();
         }
@@ -116,8 +175,30 @@ public class ThreadPool {
         if (id != -1) {
             threads.add(thread);
         }
+        return thread;
+    }
+
+    public void active(PooledRunnable runnable) throws InterruptedException {
+        lock.lockInterruptibly();
+        PooledThread thread = prepare(runnable);
         lock.unlock();
         semaphore.acquire();
-        thread.start();
+        thread.thread.start();
+    }
+
+    /**
+     * 与{@link #active(PooledRunnable)}相同，但没有空闲的permit时不等待，可在不能阻塞的线程中调用。
+     *
+     * @return 没有空闲的permit时返回false，此时runnable不会被执行
+     */
+    public boolean tryActive(PooledRunnable runnable) {
+        if (!semaphore.tryAcquire()) {
+            return false;
+        }
+        lock.lock();
+        PooledThread thread = prepare(runnable);
+        lock.unlock();
+        thread.thread.start();
+        return true;
     }
 }
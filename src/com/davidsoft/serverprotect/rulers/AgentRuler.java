@@ -5,49 +5,108 @@ import com.davidsoft.net.http.HttpRequestInfo;
 import com.davidsoft.net.http.HttpResponseInfo;
 
 import java.text.ParseException;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 检查User-Agent是否像真实的浏览器发出的。
+ * <p>浏览器的User-Agent种类不多，同一个User-Agent会反复出现，因此检查结果按User-Agent缓存在一个固定大小的直接映射表中：
+ * 按散列值定位到一格，格中是同一个User-Agent则直接使用缓存的结果，否则检查后覆盖该格。查表不加锁，表的大小不会增长。</p>
+ */
 public class AgentRuler implements Ruler {
 
-    @Override
-    public boolean judge(int clientIp, HttpRequestInfo requestInfo) {
-        String userAgent = requestInfo.headers.getFieldValue("User-Agent");
-        if (userAgent == null) {
-            return false;
+    private static final String PREFIX = "Mozilla/5.0 (";
+    private static final String ENGINE = "AppleWebKit/537.36 (KHTML, like Gecko) ";
+    private static final int CACHE_SIZE = 4096;         //必须为2的幂
+    private static final int MAX_CACHED_LENGTH = 512;   //过长的User-Agent不是浏览器发出的，不缓存，以免挤占缓存
+
+    //缓存项创建后不再改变，因此可以不加锁地在线程间传递
+    private static final class Verdict {
+        private final String userAgent;
+        private final boolean valid;
+
+        private Verdict(String userAgent, boolean valid) {
+            this.userAgent = userAgent;
+            this.valid = valid;
         }
-        //解析UserAgent
-        if (!userAgent.startsWith("Mozilla/5.0 (")) {
+    }
+
+    private static final Verdict[] cache = new Verdict[CACHE_SIZE];
+    private static final LongAdder hitCount = new LongAdder();
+    private static final LongAdder missCount = new LongAdder();
+
+    /**
+     * 检查User-Agent的格式：以"Mozilla/5.0 (...) AppleWebKit/537.36 (KHTML, like Gecko) "开头，其后为以空格分隔的若干项，
+     * 每项至多包含一个'/'，且'/'不在首尾。只扫描一遍，不创建任何对象。
+     */
+    static boolean isValidUserAgent(String userAgent) {
+        if (!userAgent.startsWith(PREFIX)) {
             return false;
         }
-        int findPos = userAgent.indexOf(") ", 13);
+        int findPos = userAgent.indexOf(") ", PREFIX.length());
         if (findPos == -1) {
             return false;
         }
         findPos += 2;
-        if (!userAgent.startsWith("AppleWebKit/537.36 (KHTML, like Gecko) ", findPos)) {
+        if (!userAgent.startsWith(ENGINE, findPos)) {
             return false;
         }
-        //检查UserAgent语法
-        findPos += 39;
-        userAgent = userAgent.substring(findPos);
-        if (userAgent.length() == 0) {
+        int start = findPos + ENGINE.length();
+        int end = userAgent.length();
+        if (start == end) {
             return false;
         }
-        for (String pattern : userAgent.split(" ")) {
-            if (pattern.length() == 0) {
-                return false;
-            }
-            findPos = pattern.indexOf('/');
-            if (findPos == -1) {
-                continue;
-            }
-            if (findPos == 0 || findPos == pattern.length() - 1) {
-                return false;
+        //末尾的空格不产生空项
+        while (end > start && userAgent.charAt(end - 1) == ' ') {
+            end--;
+        }
+        int tokenStart = start;
+        int slashPos = -1;
+        for (int i = start; i <= end; i++) {
+            char c = i == end ? ' ' : userAgent.charAt(i);
+            if (c == ' ') {
+                if (i == tokenStart && i != end) {
+                    return false;
+                }
+                if (slashPos != -1 && (slashPos == tokenStart || slashPos == i - 1)) {
+                    return false;
+                }
+                tokenStart = i + 1;
+                slashPos = -1;
             }
-            findPos = pattern.indexOf('/', findPos + 1);
-            if (findPos != -1) {
-                return false;
+            else if (c == '/') {
+                if (slashPos != -1) {
+                    return false;
+                }
+                slashPos = i;
             }
         }
+        return true;
+    }
+
+    private static boolean isValidUserAgentCached(String userAgent) {
+        if (userAgent.length() > MAX_CACHED_LENGTH) {
+            missCount.increment();
+            return isValidUserAgent(userAgent);
+        }
+        int hash = userAgent.hashCode();
+        int index = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        Verdict verdict = cache[index];
+        if (verdict != null && verdict.userAgent.equals(userAgent)) {
+            hitCount.increment();
+            return verdict.valid;
+        }
+        missCount.increment();
+        boolean valid = isValidUserAgent(userAgent);
+        cache[index] = new Verdict(userAgent, valid);
+        return valid;
+    }
+
+    @Override
+    public boolean judge(int clientIp, HttpRequestInfo requestInfo) {
+        String userAgent = requestInfo.headers.getFieldValue("User-Agent");
+        if (userAgent == null || !isValidUserAgentCached(userAgent)) {
+            return false;
+        }
         //如果是POST请求，则必须包含origin字段，且格式正确
         if ("POST".equals(requestInfo.method)) {
             String origin = requestInfo.headers.getFieldValue("Origin");
@@ -57,7 +116,6 @@ public class AgentRuler implements Ruler {
             try {
                 Origin.parse(origin);
             } catch (ParseException e) {
-                e.printStackTrace();
                 return false;
             }
         }
@@ -65,7 +123,23 @@ public class AgentRuler implements Ruler {
     }
 
     @Override
-    public void onDoSomethingForResponse(HttpResponseInfo responseInfo) {
+    public void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo) {
+
+    }
+
+    /**
+     * @return [缓存命中次数, 未命中次数]
+     */
+    public static long[] getStatistics() {
+        return new long[] {hitCount.sum(), missCount.sum()};
+    }
 
+    /**
+     * @return 缓存命中率，尚无任何检查时返回0
+     */
+    public static double getHitRate() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total == 0 ? 0 : (double) hits / total;
     }
 }
@@ -26,7 +26,7 @@ public class ForwardRuler implements Ruler {
     }
 
     @Override
-    public void onDoSomethingForResponse(HttpResponseInfo responseInfo) {
+    public void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo) {
 
     }
 }
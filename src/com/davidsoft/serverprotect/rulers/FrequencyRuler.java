@@ -12,7 +12,7 @@ public class FrequencyRuler implements Ruler {
     }
 
     @Override
-    public void onDoSomethingForResponse(HttpResponseInfo responseInfo) {
+    public void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo) {
 
     }
 }
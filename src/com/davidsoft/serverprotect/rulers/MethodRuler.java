@@ -18,7 +18,7 @@ public class MethodRuler implements Ruler {
     }
 
     @Override
-    public void onDoSomethingForResponse(HttpResponseInfo responseInfo) {
+    public void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo) {
 
     }
 }
@@ -0,0 +1,28 @@
+package com.davidsoft.serverprotect.rulers;
+
+import com.davidsoft.net.http.HttpRequestInfo;
+import com.davidsoft.net.http.HttpResponseInfo;
+import com.davidsoft.serverprotect.components.RateLimitManager;
+import com.davidsoft.serverprotect.components.Settings;
+
+public class RateLimitRuler implements Ruler {
+
+    @Override
+    public boolean judge(int clientIp, HttpRequestInfo requestInfo) {
+        return judge(clientIp, requestInfo, null);
+    }
+
+    @Override
+    public boolean judge(int clientIp, HttpRequestInfo requestInfo, String appName) {
+        Settings.RateLimit rateLimit = Settings.getRuntimeSettings().protections.findRateLimit(appName, requestInfo.uri);
+        if (rateLimit == null) {
+            return true;
+        }
+        return RateLimitManager.acquire(clientIp, rateLimit, System.nanoTime());
+    }
+
+    @Override
+    public void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo) {
+
+    }
+}
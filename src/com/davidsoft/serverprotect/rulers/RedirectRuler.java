@@ -2,6 +2,7 @@ package com.davidsoft.serverprotect.rulers;
 
 import com.davidsoft.net.NetURI;
 import com.davidsoft.serverprotect.components.TraceManager;
+import com.davidsoft.serverprotect.components.TraceTokens;
 import com.davidsoft.net.http.HttpRequestInfo;
 import com.davidsoft.net.http.HttpResponseInfo;
 
@@ -9,14 +10,15 @@ import java.util.UUID;
 
 public class RedirectRuler implements Ruler {
 
-    private String traceId;
-
     @Override
     public boolean judge(int clientIp, HttpRequestInfo requestInfo) {
-        traceId = requestInfo.headers.cookies.get("traceId");
+        String traceId = requestInfo.headers.cookies.get("traceId");
         if (traceId == null) {
             return true;
         }
+        if (TraceTokens.isEnabled()) {
+            return TraceTokens.verify(traceId, NetURI.toString(requestInfo.uri));
+        }
         TraceManager.TraceInfo traceInfo = TraceManager.getTraceInfo(traceId);
         if (traceInfo == null || traceInfo.requiredRedirectLocation == null) {
             return true;
@@ -25,7 +27,14 @@ public class RedirectRuler implements Ruler {
     }
 
     @Override
-    public void onDoSomethingForResponse(HttpResponseInfo responseInfo) {
+    public void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo) {
+        if (TraceTokens.isEnabled()) {
+            //令牌本身携带了路径信息，每次响应都签发新的令牌
+            String token = TraceTokens.issue(responseInfo.responseCode == 302 ? responseInfo.headers.getFieldValue("location") : null);
+            responseInfo.headers.cookies.put("traceId", "traceId=" + token + "; path=/");
+            return;
+        }
+        String traceId = requestInfo.headers.cookies.get("traceId");
         if (traceId == null) {
             traceId = UUID.randomUUID().toString();
             responseInfo.headers.cookies.put("traceId", "traceId=" + traceId + "; path=/");
@@ -3,9 +3,22 @@ package com.davidsoft.serverprotect.rulers;
 import com.davidsoft.net.http.HttpRequestInfo;
 import com.davidsoft.net.http.HttpResponseInfo;
 
+/**
+ * 防火墙规则。规则的实例由使用同一份配置的所有连接共享，会被多个线程同时调用，因此不能在实例中保存与请求相关的状态。
+ */
 public interface Ruler {
 
     boolean judge(int clientIp, HttpRequestInfo requestInfo);
 
-    void onDoSomethingForResponse(HttpResponseInfo responseInfo);
+    /**
+     * @param appName 处理此请求的APP名称，与APP相关的规则据此区分
+     */
+    default boolean judge(int clientIp, HttpRequestInfo requestInfo, String appName) {
+        return judge(clientIp, requestInfo);
+    }
+
+    /**
+     * @param requestInfo 此响应对应的请求
+     */
+    void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo);
 }
@@ -2,18 +2,57 @@ package com.davidsoft.serverprotect.rulers;
 
 import com.davidsoft.net.http.HttpRequestInfo;
 import com.davidsoft.net.http.HttpResponseInfo;
+import com.davidsoft.serverprotect.components.Settings;
+import com.davidsoft.serverprotect.components.TraceManager;
 
+import java.util.UUID;
+
+/**
+ * 按路径图检查访问顺序。
+ * <p>路径图在应用配置时已编译为{@link Settings.TraceGraph}，每个访客只保存一个状态整数，检查时查一次表即可。</p>
+ */
 public class TraceRuler implements Ruler {
 
-    @Override
-    public boolean judge(int clientIp, HttpRequestInfo requestInfo) {
-        //TODO: 路径判断算法
+    private static final String COOKIE_NAME = "pathId";
 
-        return true;
+    private static int stateOf(Settings.TraceGraph traceGraph, String pathId) {
+        if (pathId == null) {
+            return 0;
+        }
+        TraceManager.TraceInfo traceInfo = TraceManager.getTraceInfo(pathId);
+        return traceInfo == null ? 0 : traceGraph.restore(traceInfo.traceState);
     }
 
     @Override
-    public void onDoSomethingForResponse(HttpResponseInfo responseInfo) {
+    public boolean judge(int clientIp, HttpRequestInfo requestInfo) {
+        if ("favicon.ico".equals(requestInfo.uri.getResourceName())) {
+            return true;
+        }
+        Settings.TraceGraph traceGraph = Settings.getRuntimeSettings().protections.traceGraph;
+        int target = traceGraph.resolve(requestInfo.uri);
+        if (target == -1) {
+            return false;
+        }
+        return traceGraph.next(stateOf(traceGraph, requestInfo.headers.cookies.get(COOKIE_NAME)), target) != -1;
+    }
 
+    @Override
+    public void onDoSomethingForResponse(HttpRequestInfo requestInfo, HttpResponseInfo responseInfo) {
+        Settings.TraceGraph traceGraph = Settings.getRuntimeSettings().protections.traceGraph;
+        int target = traceGraph.resolve(requestInfo.uri);
+        if (target == -1) {
+            return;
+        }
+        String pathId = requestInfo.headers.cookies.get(COOKIE_NAME);
+        int state = stateOf(traceGraph, pathId);
+        int next = traceGraph.next(state, target);
+        if (next == -1 || (next == state && traceGraph.isFree(target))) {
+            return;
+        }
+        if (pathId == null) {
+            pathId = UUID.randomUUID().toString();
+            responseInfo.headers.cookies.put(COOKIE_NAME, COOKIE_NAME + "=" + pathId + "; path=/");
+        }
+        TraceManager.registerTraceState(pathId, traceGraph.save(next));
     }
 }